@@ -17,15 +17,31 @@
 package org.openflexo.hannah;
 
 import static org.openflexo.hannah.TestUtil.assertContents;
+import static org.openflexo.hannah.TestUtil.assertDoesntExist;
 import static org.openflexo.hannah.TestUtil.writeFile;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.RawTextComparator;
 import org.junit.Test;
 import org.openflexo.hannah.Conflict.Resolution;
+import org.openflexo.hannah.GenerationProbe.Phase;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ConflictingTests {
 
@@ -113,6 +129,21 @@ public class ConflictingTests {
 		assertContents(generator, "file1.txt", "abc\nijk\n");
 	}
 	
+	@Test
+	public void testStandaloneConflict() throws Exception {
+		final Conflict conflict = new Conflict(1, 2, "ddd\n", 1, 3, "fed\nxyz\n") {};
+		assertEquals(Resolution.USER, conflict.getResolution());
+		assertEquals(1, conflict.getUserBegin());
+		assertEquals(2, conflict.getUserEnd());
+		assertEquals("ddd\n", conflict.getUser());
+		assertEquals(1, conflict.getGenerationBegin());
+		assertEquals(3, conflict.getGenerationEnd());
+		assertEquals("fed\nxyz\n", conflict.getGeneration());
+		
+		conflict.setResolution(Resolution.GENERATION);
+		assertEquals(Resolution.GENERATION, conflict.getResolution());
+	}
+	
 	@Test
 	public void testInteractive1() throws Exception {
 		IterativeFileGenerator generator = createGenerator("oneFile5");
@@ -143,5 +174,612 @@ public class ConflictingTests {
 		assertContents(generator, "file1.txt", "abc\nfed\nijk\nlmn\nooo\nrst\nuvw\nxyz\n");
 	}
 	
+	@Test
+	public void testStreaming1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("streaming1");
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.generate("file2.txt", "lmn\nopq\nrst\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		writeFile(generator, "file2.txt", "lmn\nooo\nrst\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.generate("file2.txt", "lmn\nqpo\nrst\n");
+		
+		final List<String> paths = new ArrayList<String>();
+		generator.endStreaming(new StreamingConflictHandler() {
+			@Override
+			public void conflictingFile(ConflictingFile conflictingFile) {
+				paths.add(conflictingFile.getPath());
+				assertEquals(1, conflictingFile.getConflicts().size());
+				if ( conflictingFile.getPath().equals("file1.txt") ) {
+					conflictingFile.getConflicts().get(0).setResolution(Resolution.GENERATION);
+				}
+			}
+		});
+		
+		assertEquals(2, paths.size());
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\n");
+		assertContents(generator, "file2.txt", "lmn\nooo\nrst\n");
+	}
+	
+	@Test
+	public void testBinary1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("binary1");
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.bin", "abc\u0000def\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.bin", "abc\u0000ddd\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.bin", "abc\u0000fed\nijk\n");
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				assertEquals(1, conflictingFiles.size());
+				final ConflictingFile file = conflictingFiles.get(0);
+				assertTrue(file.isBinary());
+				assertEquals(1, file.getConflicts().size());
+				file.getConflicts().get(0).setResolution(Resolution.GENERATION);
+			}
+		});
+		
+		assertContents(generator, "file1.bin", "abc\u0000fed\nijk\n");
+		
+		// resolution was committed, it's not a user modification.
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.bin", "abc\u0000fed\nijk\n");
+		generator.end(TestUtil.noConflict);
+	}
+	
+	@Test
+	public void testBigFile1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("bigFile1");
+		// all files are considered big and merged from mapped files.
+		generator.setBigFileThreshold(0);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\nlmn\nopq\nrst\nuvw\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\nlmn\nooo\nrst\nuvw\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\nlmn\nqpo\nrst\nuvw\nxyz\n");
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				assertEquals(1, conflictingFiles.size());
+				final List<Conflict> conflicts = conflictingFiles.get(0).getConflicts();
+				assertEquals(2, conflicts.size());
+				assertEquals("ddd\n", conflicts.get(0).getUser());
+				assertEquals("fed\n", conflicts.get(0).getGeneration());
+				conflicts.get(0).setResolution(Resolution.GENERATION);
+				conflicts.get(1).setResolution(Resolution.USER);
+			}
+		});
+		
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\nlmn\nooo\nrst\nuvw\nxyz\n");
+	}
+	
+	@Test
+	public void testRegions1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("regions1");
+		generator.setProtectedRegions(new ProtectedRegions("BEGIN USER", "END USER"));
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\n// BEGIN USER body\ndef\n// END USER\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\n// BEGIN USER body\nddd\n// END USER\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\n// BEGIN USER body\nfed\n// END USER\nkji\n");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "file1.txt", "abc\n// BEGIN USER body\nddd\n// END USER\nkji\n");
+	}
+	
+	@Test
+	public void testMergeBudget1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("mergeBudget1");
+		generator.setMergeTimeBudget(50);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		
+		// line comparisons block until interrupted, the budget is always exceeded
+		final CountDownLatch never = new CountDownLatch(1);
+		generator.setComparator(new RawTextComparator() {
+			@Override
+			public boolean equals(RawText a, int ai, RawText b, int bi) {
+				try {
+					never.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return RawTextComparator.DEFAULT.equals(a, ai, b, bi);
+			}
+			
+			@Override
+			public int hash(RawText seq, int ptr) {
+				return RawTextComparator.DEFAULT.hash(seq, ptr);
+			}
+			
+			@Override
+			protected int hashRegion(byte[] raw, int ptr, int end) {
+				// hashes the region as a one line text
+				final byte[] line = Arrays.copyOfRange(raw, ptr, end + 1);
+				line[end - ptr] = '\n';
+				return RawTextComparator.DEFAULT.hash(new RawText(line), 0);
+			}
+		});
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				assertEquals(1, conflictingFiles.size());
+				assertTrue(conflictingFiles.get(0).isWholeFile());
+				conflictingFiles.get(0).getConflicts().get(0).setResolution(Resolution.GENERATION);
+			}
+		});
+		
+		assertEquals(1, generator.getMergeStatistics().getBudgetExceededFiles().size());
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\n");
+	}
+	
+	@Test
+	public void testRules1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("rules1");
+		generator.start(TestUtil.noModification);
+		generator.generate("conf/file1.properties", "abc\ndef\nijk\n");
+		generator.generate("src/file2.txt", "abc\ndef\nijk\nlmn\nopq\nrst\nuvw\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "conf/file1.properties", "abc\nddd\nijk\n");
+		writeFile(generator, "src/file2.txt", "abc\nddd\nijk\nlmn\nooo\nrst\nuvw\n");
+		
+		final RuleConflictHandler handler = new RuleConflictHandler(Resolution.USER);
+		handler.addGlobRule("**/*.properties", Resolution.GENERATION);
+		handler.addRegexRule("src/.*", RuleConflictHandler.generationMatches("keep"), Resolution.GENERATION);
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("conf/file1.properties", "abc\nfed\nijk\n");
+		generator.generate("src/file2.txt", "abc\nkeep\nijk\nlmn\nqpo\nrst\nuvw\n");
+		generator.end(handler);
+		
+		assertContents(generator, "conf/file1.properties", "abc\nfed\nijk\n");
+		assertContents(generator, "src/file2.txt", "abc\nkeep\nijk\nlmn\nooo\nrst\nuvw\n");
+	}
+	
+	@Test
+	public void testRules2() throws Exception {
+		IterativeFileGenerator generator = createGenerator("rules2");
+		generator.start(TestUtil.noModification);
+		generator.generate("gen/gen.txt", "abc\ndef\nijk\n");
+		generator.generate("gen/other.txt", "abc\ndef\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "gen/gen.txt", "abc\nddd\nijk\n");
+		writeFile(generator, "gen/other.txt", "abc\nddd\nijk\n");
+		
+		// back references still work next to other rules
+		final RuleConflictHandler handler = new RuleConflictHandler(Resolution.USER);
+		handler.addGlobRule("*.txt", Resolution.GENERATION);
+		handler.addRegexRule("(\\w+)/\\1\\.txt", Resolution.GENERATION);
+		handler.addRegexRule("(\\w+)/.*", Resolution.USER);
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("gen/gen.txt", "abc\nfed\nijk\n");
+		generator.generate("gen/other.txt", "abc\nfed\nijk\n");
+		generator.end(handler);
+		
+		assertContents(generator, "gen/gen.txt", "abc\nfed\nijk\n");
+		assertContents(generator, "gen/other.txt", "abc\nddd\nijk\n");
+	}
+	
+	@Test
+	public void testRememberedResolutions1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("rememberedResolutions1");
+		generator.setRememberResolutions(true);
+		final List<ConflictingFile> handled = new ArrayList<ConflictingFile>();
+		final ConflictHandler handler = new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				handled.addAll(conflictingFiles);
+				ConflictHandler.user.conflicts(conflictingFiles);
+			}
+		};
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.end(handler);
+		assertEquals(1, handled.size());
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.end(handler);
+		assertEquals(2, handled.size());
+		
+		// same conflict as the first one, the handler isn't called
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				throw new AssertionError("Conflict should be remembered.");
+			}
+		});
+		assertEquals(1, generator.getMergeStatistics().getRememberedFiles());
+		assertContents(generator, "file1.txt", "abc\nddd\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nxyz\nijk\n");
+		generator.end(handler);
+		assertEquals(3, handled.size());
+		
+		// same user and generation texts but another base, it's a new conflict
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.end(handler);
+		assertEquals(4, handled.size());
+		assertEquals(0, generator.getMergeStatistics().getRememberedFiles());
+	}
+	
+	@Test
+	public void testOrchestrator1() throws Exception {
+		final IterativeFileGenerator generator1 = createGenerator("orchestrator1a");
+		final IterativeFileGenerator generator2 = createGenerator("orchestrator1b");
+		final String[] generated = { "abc\ndef\nijk\n" };
+		final GenerationService.GenerationTask task = new GenerationService.GenerationTask() {
+			@Override
+			public void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception {
+				generator.generate("file1.txt", generated[0]);
+			}
+		};
+		
+		final List<Modification> modifications = new ArrayList<Modification>();
+		final List<ConflictingFile> conflictingFiles = new ArrayList<ConflictingFile>();
+		final GenerationOrchestrator orchestrator = new GenerationOrchestrator(2, 1);
+		try {
+			orchestrator.add(generator1, task);
+			orchestrator.add(generator2, task);
+			orchestrator.run(TestUtil.noModification, TestUtil.noConflict);
+			
+			writeFile(generator1, "file1.txt", "abc\nddd\nijk\n");
+			writeFile(generator2, "file1.txt", "abc\ndef\nijk\nlmn\n");
+			generated[0] = "abc\nfed\nijk\n";
+			
+			orchestrator.run(new ModificationHandler() {
+				@Override
+				public void modifications(List<Modification> list) {
+					modifications.addAll(list);
+					ModificationHandler.accept.modifications(list);
+				}
+			}, new ConflictHandler() {
+				@Override
+				public void conflicts(List<ConflictingFile> list) {
+					conflictingFiles.addAll(list);
+					ConflictHandler.generation.conflicts(list);
+				}
+			});
+		} finally {
+			orchestrator.close();
+		}
+		
+		// one call with the modifications of both outputs
+		assertEquals(2, modifications.size());
+		assertTrue(orchestrator.getGenerator(modifications.get(0)) != orchestrator.getGenerator(modifications.get(1)));
+		assertEquals(1, conflictingFiles.size());
+		assertTrue(orchestrator.getGenerator(conflictingFiles.get(0)) == generator1);
+		
+		assertContents(generator1, "file1.txt", "abc\nfed\nijk\n");
+		assertContents(generator2, "file1.txt", "abc\nfed\nijk\nlmn\n");
+	}
+	
+	@Test
+	public void testOrchestrator2() throws Exception {
+		final IterativeFileGenerator generator1 = createGenerator("orchestrator2a");
+		final IterativeFileGenerator generator2 = createGenerator("orchestrator2b");
+		final boolean[] failing = { false };
+		final String[] generated = { "abc\ndef\nijk\n" };
+		final GenerationService.GenerationTask task = new GenerationService.GenerationTask() {
+			@Override
+			public void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception {
+				generator.generate("file1.txt", generated[0]);
+				if ( failing[0] && generator == generator1 ) {
+					generator.generate("partial.txt", "partial\n");
+					throw new IllegalStateException("Generation failure");
+				}
+			}
+		};
+		
+		// both orchestrators share the same permits
+		final Semaphore io = new Semaphore(1, true);
+		final GenerationOrchestrator orchestrator = new GenerationOrchestrator(2, io);
+		final GenerationOrchestrator other = new GenerationOrchestrator(1, orchestrator.getIoPermits());
+		try {
+			orchestrator.add(generator1, task);
+			other.add(generator2, task);
+			orchestrator.run(TestUtil.noModification, TestUtil.noConflict);
+			other.run(TestUtil.noModification, TestUtil.noConflict);
+			
+			// a failing task abandons the cycle of its generator only
+			failing[0] = true;
+			generated[0] = "abc\nfed\nijk\n";
+			try {
+				orchestrator.run(TestUtil.noModification, TestUtil.noConflict);
+				fail("Generation should fail");
+			} catch (IOException e) {
+				// expected
+			}
+			assertContents(generator1, "file1.txt", "abc\ndef\nijk\n");
+			assertDoesntExist(generator1, "partial.txt");
+			
+			// a failing handler abandons all cycles
+			failing[0] = false;
+			writeFile(generator1, "file1.txt", "abc\nddd\nijk\n");
+			try {
+				orchestrator.run(ModificationHandler.accept, new ConflictHandler() {
+					@Override
+					public void conflicts(List<ConflictingFile> list) {
+						throw new IllegalStateException("Handler failure");
+					}
+				});
+				fail("Handler should fail");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertContents(generator1, "file1.txt", "abc\nddd\nijk\n");
+			
+			// next runs start from the last merged generation
+			orchestrator.run(TestUtil.noModification, ConflictHandler.generation);
+			other.run(TestUtil.noModification, TestUtil.noConflict);
+		} finally {
+			orchestrator.close();
+			other.close();
+		}
+		assertEquals(1, io.availablePermits());
+		assertContents(generator1, "file1.txt", "abc\nfed\nijk\n");
+		assertDoesntExist(generator1, "partial.txt");
+		assertContents(generator2, "file1.txt", "abc\nfed\nijk\n");
+	}
+	
+	@Test
+	public void testProbe1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("probe1");
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final Map<Phase, Thread> threads = new ConcurrentHashMap<Phase, Thread>();
+		generator.setProbe(new GenerationProbe() {
+			@Override
+			public void cycleStarted(IterativeFileGenerator generator) {
+				events.add("cycle");
+			}
+			
+			@Override
+			public void cycleEnded(IterativeFileGenerator generator) {
+				events.add("/cycle");
+			}
+			
+			@Override
+			public void phaseStarted(IterativeFileGenerator generator, Phase phase) {
+				events.add(phase.name());
+				threads.put(phase, Thread.currentThread());
+			}
+			
+			@Override
+			public void phaseEnded(IterativeFileGenerator generator, Phase phase) {
+				events.add("/" + phase.name());
+				if ( threads.remove(phase) != Thread.currentThread() ) {
+					events.add("wrong thread for " + phase);
+				}
+			}
+			
+			@Override
+			public void fileWritten(IterativeFileGenerator generator, String path, long size, long duration) {
+				events.add("write " + path);
+			}
+			
+			@Override
+			public void fileMerged(IterativeFileGenerator generator, String path, long size, long duration) {
+				events.add("merge " + path);
+			}
+		});
+		generator.setProbeFileThreshold(10);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.generate("file2.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		assertEquals("[cycle, DIFF, /DIFF, CLEANUP, /CLEANUP, WRITE, write file1.txt, /WRITE, STATUS, /STATUS, COMMIT, /COMMIT, MERGE, /MERGE, /cycle]", events.toString());
+		events.clear();
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.generate("file2.txt", "abc");
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				events.add("handler");
+				ConflictHandler.user.conflicts(conflictingFiles);
+			}
+		});
+		assertTrue(events.contains("merge file1.txt"));
+		assertTrue(events.indexOf("RESOLVE") < events.indexOf("merge file1.txt"));
+		assertTrue(events.indexOf("merge file1.txt") < events.indexOf("/RESOLVE"));
+		// handler out of the resolve phase, merge commit in merge phase
+		final List<String> tail = events.subList(events.indexOf("handler") - 1, events.size());
+		assertEquals("[/RESOLVE, handler, RESOLVE, /RESOLVE, MERGE, /MERGE, /cycle]", tail.toString());
+		events.clear();
+		
+		// phases end in the thread they started in, handler called in between
+		writeFile(generator, "file1.txt", "abc\neee\nijk\n");
+		final GenerationOrchestrator orchestrator = new GenerationOrchestrator(4, 1);
+		try {
+			orchestrator.add(generator, new GenerationService.GenerationTask() {
+				@Override
+				public void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception {
+					generator.generate("file1.txt", "abc\nfff\nijk\n");
+				}
+			});
+			orchestrator.run(ModificationHandler.accept, ConflictHandler.user);
+		} finally {
+			orchestrator.close();
+		}
+		assertTrue(events.contains("merge file1.txt"));
+		assertFalse(events.toString(), events.toString().contains("wrong thread"));
+		assertTrue(threads.isEmpty());
+	}
+	
+	@Test
+	public void testManyConflicts1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("manyConflicts1");
+		final StringBuilder base = new StringBuilder();
+		final StringBuilder user = new StringBuilder();
+		final StringBuilder generation = new StringBuilder();
+		final StringBuilder expected = new StringBuilder();
+		for ( int i=0; i<1000; i++ ) {
+			base.append("line ").append(i).append("\nkept ").append(i).append('\n');
+			user.append("user ").append(i).append("\nkept ").append(i).append('\n');
+			generation.append("generation ").append(i).append("\nkept ").append(i).append('\n');
+			expected.append(i % 2 == 0 ? "user " : "generation ").append(i).append("\nkept ").append(i).append('\n');
+		}
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", base.toString());
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", user.toString());
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", generation.toString());
+		generator.end(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				final List<Conflict> conflicts = conflictingFiles.get(0).getConflicts();
+				assertEquals(1000, conflicts.size());
+				for ( int i=1; i<conflicts.size(); i+=2 ) {
+					assertEquals("generation " + i + "\n", conflicts.get(i).getGeneration());
+					conflicts.get(i).setResolution(Resolution.GENERATION);
+				}
+			}
+		});
+		
+		assertContents(generator, "file1.txt", expected.toString());
+	}
+	
+	@Test
+	public void testDeferred1() throws Exception {
+		IterativeFileGenerator generator = createGenerator("deferred1");
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.generate("file2.txt", "123\n456\n789\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		writeFile(generator, "file2.txt", "123\n444\n789\n");
+		
+		// the merge is committed with conflict markers
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.generate("file2.txt", "123\n654\n789\n");
+		assertEquals(2, generator.endDeferred().size());
+		assertContents(generator, "file1.txt", "abc\n<<<<<<< user\nddd\n=======\nfed\n>>>>>>> generation\nijk\n");
+		assertEquals(2, generator.getPendingConflicts().size());
+		
+		// file2 is resolved by hand, file1 through the API
+		writeFile(generator, "file2.txt", "123\n456789\n789\n");
+		final List<String> handled = new ArrayList<String>();
+		generator.resolvePending(new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				for ( ConflictingFile conflictingFile : conflictingFiles ) {
+					handled.add(conflictingFile.getPath());
+					conflictingFile.setResolution(Resolution.GENERATION);
+				}
+			}
+		});
+		assertEquals(1, handled.size());
+		assertEquals("file1.txt", handled.get(0));
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\n");
+		assertTrue(generator.getPendingConflicts().isEmpty());
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.generate("file2.txt", "123\n654\n789\n");
+		assertTrue(generator.endDeferred().isEmpty());
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\n");
+		assertContents(generator, "file2.txt", "123\n456789\n789\n");
+		
+		// conflicts left pending are resolved with user version by next cycle
+		writeFile(generator, "file1.txt", "abc\nxxx\nijk\n");
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nyyy\nijk\n");
+		generator.generate("file2.txt", "123\n654\n789\n");
+		assertEquals(1, generator.endDeferred().size());
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nyyy\nijk\n");
+		generator.generate("file2.txt", "123\n654\n789\n");
+		generator.end(ConflictHandler.generation);
+		assertContents(generator, "file1.txt", "abc\nxxx\nijk\n");
+		assertTrue(generator.getPendingConflicts().isEmpty());
+	}
+	
+	@Test
+	public void testDeferred2() throws Exception {
+		IterativeFileGenerator generator = createGenerator("deferred2");
+		generator.setRememberResolutions(true);
+		final List<ConflictingFile> handled = new ArrayList<ConflictingFile>();
+		final ConflictHandler handler = new ConflictHandler() {
+			@Override
+			public void conflicts(List<ConflictingFile> conflictingFiles) {
+				handled.addAll(conflictingFiles);
+				ConflictHandler.generation.conflicts(conflictingFiles);
+			}
+		};
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		assertEquals(1, generator.endDeferred().size());
+		
+		// the pending conflict is resolved with user version by default
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nxyz\nijk\n");
+		generator.end(handler);
+		assertEquals(1, handled.size());
+		assertContents(generator, "file1.txt", "abc\nxyz\nijk\n");
+		
+		// same conflict as the deferred one, the default isn't remembered
+		writeFile(generator, "file1.txt", "abc\nddd\nijk\n");
+		generator.start(ModificationHandler.accept);
+		generator.generate("file1.txt", "abc\nfed\nijk\n");
+		generator.end(handler);
+		assertEquals(2, handled.size());
+		assertContents(generator, "file1.txt", "abc\nfed\nijk\n");
+	}
 	
 }
@@ -17,10 +17,41 @@
 package org.openflexo.hannah;
 
 import static org.openflexo.hannah.TestUtil.assertContents;
+import static org.openflexo.hannah.TestUtil.writeFile;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.junit.Test;
+import org.openflexo.hannah.IterativeFileGenerator.Version;
+import org.openflexo.hannah.OutputWriter.Durability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class NonConflictingTests {
 
@@ -68,4 +99,663 @@ public class NonConflictingTests {
 		assertContents(generator, "file2.txt", "cba");
 	}
 
+	@Test
+	public void testMergedModification() throws Exception {
+		IterativeFileGenerator generator = createGenerator("mergedModification");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nijk\n");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "aaa\ndef\nijk\n");
+		
+		generator.start(TestUtil.modifications);
+		generator.generate("file1.txt", "abc\ndef\nkji\n");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "file1.txt", "aaa\ndef\nkji\n");
+	}
+
+	@Test
+	public void testDurability() throws Exception {
+		IterativeFileGenerator generator = createGenerator("durability");
+		generator.setDurability(Durability.BATCH);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("folder/sub/file1.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "folder/sub/file1.txt", "abc");
+		
+		writeFile(generator, "folder/sub/file1.txt", "cba");
+		generator.setDurability(Durability.FILE);
+		
+		generator.start(TestUtil.modifications);
+		generator.generate("folder/sub/file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "folder/sub/file1.txt", "cba");
+		assertContents(generator, "folder/file2.txt", "def");
+	}
+
+	@Test
+	public void testFailedWrite() throws Exception {
+		IterativeFileGenerator generator = createGenerator("failedWrite");
+		final File file = new File(generator.getOutputFolder(), "file1.txt");
+		final OutputWriter writer = new OutputWriter(Durability.NONE);
+		writer.write(file, "abc", "UTF-8");
+		
+		// a stream closed without commit leaves the file as is
+		final OutputWriter.AtomicOutputStream stream = writer.open(file);
+		try {
+			stream.write("partial".getBytes("UTF-8"));
+		} finally {
+			stream.close();
+		}
+		assertEquals("abc", FileUtil.loadContents(file, "UTF-8"));
+		assertEquals(1, generator.getOutputFolder().list().length);
+		
+		final OutputWriter.AtomicOutputStream committed = writer.open(file);
+		try {
+			committed.write("cba".getBytes("UTF-8"));
+			committed.commit();
+		} finally {
+			committed.close();
+		}
+		assertEquals("cba", FileUtil.loadContents(file, "UTF-8"));
+		assertEquals(1, generator.getOutputFolder().list().length);
+	}
+	
+	@Test
+	public void testPermissions() throws Exception {
+		IterativeFileGenerator generator = createGenerator("permissions");
+		if ( FileSystems.getDefault().supportedFileAttributeViews().contains("posix") == false ) return;
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("folder/file1.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		// generated files get the default mode
+		File file = new File(generator.getOutputFolder(), "folder/file1.txt");
+		File reference = new File(generator.getOutputFolder(), "folder/reference.txt");
+		new FileOutputStream(reference).close();
+		assertEquals(Files.getPosixFilePermissions(reference.toPath()), Files.getPosixFilePermissions(file.toPath()));
+		
+		// a replaced file keeps its permissions
+		assertTrue(file.setExecutable(true));
+		FileUtil.writeFile(file, "cba", "UTF-8");
+		assertTrue(Files.getPosixFilePermissions(file.toPath()).contains(PosixFilePermission.OWNER_EXECUTE));
+	}
+
+	@Test
+	public void testEncodings() throws Exception {
+		IterativeFileGenerator generator = createGenerator("encodings");
+		final StringBuilder large = new StringBuilder();
+		while ( large.length() < 200 * 1024 ) {
+			large.append("\u00e9t\u00e9 \u4e2d\u6587 \ud83d\ude00\n");
+		}
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("utf8.txt", large.toString());
+		generator.generate("latin1.txt", "\u00e9t\u00e9 \u4e2d", "ISO-8859-1");
+		generator.generate("utf16.txt", "abc\u00e9", "UTF-16");
+		generator.end(TestUtil.noConflict);
+		
+		final File output = generator.getOutputFolder();
+		assertTrue(Arrays.equals(large.toString().getBytes("UTF-8"), Files.readAllBytes(new File(output, "utf8.txt").toPath())));
+		assertTrue(Arrays.equals("\u00e9t\u00e9 \u4e2d".getBytes("ISO-8859-1"), Files.readAllBytes(new File(output, "latin1.txt").toPath())));
+		assertTrue(Arrays.equals("abc\u00e9".getBytes("UTF-16"), Files.readAllBytes(new File(output, "utf16.txt").toPath())));
+	}
+
+	@Test
+	public void testSharedObjectStore() throws Exception {
+		final File store = new File(baseFolder, "sharedStore");
+		FileUtil.delete(store);
+		
+		IterativeFileGenerator generator1 = createGenerator("shared1");
+		IterativeFileGenerator generator2 = createGenerator("shared2");
+		generator1.setSharedObjectStore(store);
+		generator2.setSharedObjectStore(store);
+		
+		for ( IterativeFileGenerator generator : Arrays.asList(generator1, generator2) ) {
+			generator.start(TestUtil.noModification);
+			generator.generate("file1.txt", "abc");
+			generator.end(TestUtil.noConflict);
+		}
+		
+		writeFile(generator2, "file1.txt", "cba");
+		
+		generator2.start(TestUtil.modifications);
+		generator2.generate("file1.txt", "abc");
+		generator2.end(TestUtil.noConflict);
+		
+		assertContents(generator1, "file1.txt", "abc");
+		assertContents(generator2, "file1.txt", "cba");
+		
+		// objects are only in the shared store
+		for ( IterativeFileGenerator generator : Arrays.asList(generator1, generator2) ) {
+			final File objects = new File(generator.getOutputFolder(), ".hannah/objects");
+			for ( String child : objects.list() ) {
+				assertTrue(child.equals("info") || child.equals("pack"));
+			}
+		}
+		assertTrue(store.list().length > 2);
+	}
+
+	@Test
+	public void testPackedCommits() throws Exception {
+		IterativeFileGenerator generator = createGenerator("packedCommits");
+		generator.setPackedCommits(true);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		final File objects = new File(generator.getOutputFolder(), ".hannah/objects");
+		final int looseFolders = objects.list().length;
+		
+		writeFile(generator, "file1.txt", "cba");
+		final boolean links = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		if ( links ) {
+			Files.createSymbolicLink(new File(generator.getOutputFolder(), "link.txt").toPath(), Paths.get("file1.txt"));
+		}
+		
+		generator.start(TestUtil.modifications);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "file1.txt", "cba");
+		assertContents(generator, "file3.txt", "ghi");
+		assertTrue(new File(generator.getOutputFolder(), "folder").exists() == false);
+		
+		// a link is committed as a link, not as the file it points to
+		if ( links ) {
+			final Repository repository = new FileRepositoryBuilder().setGitDir(new File(generator.getOutputFolder(), ".hannah")).build();
+			final RevWalk walk = new RevWalk(repository);
+			try {
+				final RevCommit master = walk.parseCommit(repository.resolve(IterativeFileGenerator.MASTER));
+				final TreeWalk tree = TreeWalk.forPath(repository, "link.txt", master.getTree());
+				assertEquals(FileMode.SYMLINK, tree.getFileMode(0));
+				assertEquals("file1.txt", new String(repository.open(tree.getObjectId(0)).getBytes(), "UTF-8"));
+			} finally {
+				walk.release();
+				repository.close();
+			}
+			assertTrue(Files.isSymbolicLink(new File(generator.getOutputFolder(), "link.txt").toPath()));
+		}
+		
+		// only the merge commit and its tree are loose
+		assertTrue(objects.list().length <= looseFolders + 2);
+		int packs = 0;
+		for ( String child : new File(objects, "pack").list() ) {
+			if ( child.endsWith(".pack") ) packs++;
+			assertTrue(child.startsWith("pack-"));
+		}
+		assertEquals(3, packs);
+		
+		// packs are consolidated once there are too many
+		generator.setMaxPacks(3);
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file4.txt", "jkl");
+		generator.end(TestUtil.noConflict);
+		
+		packs = 0;
+		for ( String child : new File(objects, "pack").list() ) {
+			if ( child.endsWith(".pack") ) packs++;
+		}
+		assertEquals(1, packs);
+		assertContents(generator, "file1.txt", "cba");
+		assertContents(generator, "file4.txt", "jkl");
+		assertEquals("jkl", generator.getContents("file4.txt", Version.GENERATED));
+	}
+
+	@Test
+	public void testExport() throws Exception {
+		IterativeFileGenerator generator = createGenerator("export");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		generator.start(TestUtil.modifications);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		// master contains user modifications
+		final ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		generator.export(IterativeFileGenerator.MASTER, IterativeFileGenerator.ArchiveFormat.ZIP, null, zip);
+		final Map<String, String> files = new HashMap<String, String>();
+		final ZipInputStream entries = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+		try {
+			ZipEntry entry = entries.getNextEntry();
+			while ( entry != null ) {
+				final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+				final byte[] buffer = new byte[1024];
+				for ( int read = entries.read(buffer); read >= 0; read = entries.read(buffer) ) {
+					contents.write(buffer, 0, read);
+				}
+				files.put(entry.getName(), contents.toString("UTF-8"));
+				// ASi extra field with the Unix mode
+				final byte[] extra = entry.getExtra();
+				assertEquals(0x756e, (extra[0] & 0xff) | (extra[1] & 0xff) << 8);
+				assertEquals(0100644, (extra[8] & 0xff) | (extra[9] & 0xff) << 8);
+				entry = entries.getNextEntry();
+			}
+		} finally {
+			entries.close();
+		}
+		assertEquals("cba", files.get("file1.txt"));
+		assertEquals("def", files.get("folder/file2.txt"));
+		
+		// tar of the generation, only the folder
+		final ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		generator.export(IterativeFileGenerator.GENERATION, IterativeFileGenerator.ArchiveFormat.TAR, Arrays.asList("folder"), tar);
+		final byte[] bytes = tar.toByteArray();
+		assertEquals(4 * 512, bytes.length);
+		assertEquals("folder/file2.txt", new String(bytes, 0, 16, "UTF-8"));
+		assertEquals(0, bytes[16]);
+		assertEquals("def", new String(bytes, 512, 3, "UTF-8"));
+		
+		// long non ASCII path split between prefix and name on bytes
+		final StringBuilder folder = new StringBuilder("long/");
+		for ( int i=0; i<60; i++ ) {
+			folder.append('\u00e9');
+		}
+		try {
+			new File(generator.getOutputFolder(), folder.toString()).toPath();
+		} catch (InvalidPathException e) {
+			// file names can't be non ASCII here
+			return;
+		}
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.generate(folder + "/file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		final ByteArrayOutputStream longTar = new ByteArrayOutputStream();
+		generator.export(IterativeFileGenerator.GENERATION, IterativeFileGenerator.ArchiveFormat.TAR, Arrays.asList("long"), longTar);
+		final byte[] longBytes = longTar.toByteArray();
+		assertEquals(4 * 512, longBytes.length);
+		assertEquals("file3.txt", new String(longBytes, 0, 9, "UTF-8"));
+		assertEquals(0, longBytes[9]);
+		assertEquals(folder.toString(), new String(longBytes, 345, 125, "UTF-8"));
+		assertEquals(0, longBytes[345 + 125]);
+	}
+
+	@Test
+	public void testBundle() throws Exception {
+		IterativeFileGenerator generator = createGenerator("bundleSource");
+		IterativeFileGenerator replica = createGenerator("bundleReplica");
+		final StringBuilder big = new StringBuilder();
+		for ( int i=0; i<10000; i++ ) {
+			big.append("line ").append(i).append('\n');
+		}
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/big.txt", big.toString());
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		generator.start(TestUtil.modifications);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/big.txt", big.toString());
+		generator.end(TestUtil.noConflict);
+		
+		ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+		generator.exportBundle(null, bundle);
+		final int fullSize = bundle.size();
+		replica.importBundle(new ByteArrayInputStream(bundle.toByteArray()));
+		assertContents(replica, "file1.txt", "cba");
+		assertContents(replica, "folder/big.txt", big.toString());
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file2.txt", "def");
+		generator.generate("folder/big.txt", big.toString());
+		generator.end(TestUtil.noConflict);
+		
+		// only the new objects are sent
+		bundle = new ByteArrayOutputStream();
+		generator.exportBundle(Arrays.asList(replica.getCommitId(IterativeFileGenerator.GENERATION), replica.getCommitId(IterativeFileGenerator.MASTER)), bundle);
+		assertTrue(bundle.size() < fullSize / 2);
+		replica.importBundle(new ByteArrayInputStream(bundle.toByteArray()));
+		assertContents(replica, "file1.txt", "cba");
+		assertContents(replica, "file2.txt", "def");
+		assertEquals(generator.getCommitId(IterativeFileGenerator.MASTER), replica.getCommitId(IterativeFileGenerator.MASTER));
+	}
+
+	@Test
+	public void testReadContents() throws Exception {
+		IterativeFileGenerator generator = createGenerator("readContents");
+		assertNull(generator.getContents("file1.txt", Version.GENERATED));
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		// the output folder is wiped but previous versions are still readable
+		generator.start(TestUtil.modifications);
+		assertEquals("abc", generator.getContents("file1.txt", Version.GENERATED));
+		assertEquals("cba", generator.getContents("file1.txt", Version.MERGED));
+		assertEquals("abc", generator.getContents("file1.txt", Version.BASE));
+		assertEquals("def", generator.getContents("folder/file2.txt", Version.GENERATED));
+		assertNull(generator.getContents("folder", Version.GENERATED));
+		assertNull(generator.getContents("file3.txt", Version.GENERATED));
+		generator.generate("file1.txt", "abc");
+		generator.generate("file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		assertEquals("ghi", generator.getContents("file3.txt", Version.GENERATED));
+		assertEquals("ghi", generator.getContents("file3.txt", Version.MERGED));
+		assertEquals("cba", generator.getContents("file1.txt", Version.MERGED));
+		assertNull(generator.getContents("folder/file2.txt", Version.MERGED));
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		IterativeFileGenerator generator = createGenerator("snapshotOutput");
+		File snapshots = new File(baseFolder, "snapshots");
+		FileUtil.delete(snapshots);
+		generator.setSnapshotFolder(snapshots);
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		File snapshot = generator.getSnapshot();
+		assertEquals("abc", FileUtil.loadContents(new File(snapshot, "file1.txt")));
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		// during the cycle the snapshot still shows the last merge
+		generator.start(TestUtil.modifications);
+		assertFalse(new File(generator.getOutputFolder(), "file1.txt").exists());
+		assertEquals("cba", FileUtil.loadContents(new File(snapshot, "file1.txt")));
+		generator.generate("file1.txt", "abc");
+		generator.generate("file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		assertEquals("cba", FileUtil.loadContents(new File(snapshot, "file1.txt")));
+		assertEquals("ghi", FileUtil.loadContents(new File(snapshot, "file3.txt")));
+		assertFalse(new File(snapshot, "folder/file2.txt").exists());
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		// current link, current and previous snapshots
+		assertEquals(3, snapshots.list().length);
+		assertEquals("cba", FileUtil.loadContents(new File(snapshot, "file1.txt")));
+		assertFalse(new File(snapshot, "file3.txt").exists());
+		// first snapshot recycled, emptied folders are removed
+		assertFalse(new File(snapshot, "folder").exists());
+		
+		// recycling doesn't change the files shared with the previous snapshot
+		File previous = null;
+		for ( File child : snapshots.listFiles() ) {
+			if ( child.getName().equals("current") == false && child.getCanonicalFile().equals(snapshot.getCanonicalFile()) == false ) {
+				previous = child;
+			}
+		}
+		assertEquals("cba", FileUtil.loadContents(new File(previous, "file1.txt")));
+		assertEquals("ghi", FileUtil.loadContents(new File(previous, "file3.txt")));
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file3.txt/file4.txt", "jkl");
+		generator.end(TestUtil.noConflict);
+		
+		// previous snapshot recycled, its file replaced by a folder
+		assertEquals(3, snapshots.list().length);
+		assertEquals("cba", FileUtil.loadContents(new File(snapshot, "file1.txt")));
+		assertEquals("jkl", FileUtil.loadContents(new File(snapshot, "file3.txt/file4.txt")));
+		assertEquals(3, snapshot.list().length);
+	}
+
+	@Test
+	public void testGenerateIfChanged() throws Exception {
+		IterativeFileGenerator generator = createGenerator("generateIfChanged");
+		final int[] rendered = new int[1];
+		final ContentsSupplier abc = new ContentsSupplier() {
+			@Override
+			public String getContents() {
+				rendered[0] += 1;
+				return "abc";
+			}
+		};
+		
+		generator.start(TestUtil.noModification);
+		generator.generateIfChanged("file1.txt", "1", abc);
+		generator.generateIfChanged("file2.txt", "1", abc);
+		generator.end(TestUtil.noConflict);
+		assertEquals(2, rendered[0]);
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		// same inputs, nothing is rendered
+		generator.start(TestUtil.modifications);
+		generator.generateIfChanged("file1.txt", "1", abc);
+		generator.generateIfChanged("file2.txt", "1", abc);
+		generator.end(TestUtil.noConflict);
+		assertEquals(2, rendered[0]);
+		assertContents(generator, "file1.txt", "cba");
+		assertContents(generator, "file2.txt", "abc");
+		
+		// changed inputs
+		generator.start(TestUtil.noModification);
+		generator.generateIfChanged("file1.txt", "1", abc);
+		generator.generateIfChanged("file2.txt", "2", new ContentsSupplier() {
+			@Override
+			public String getContents() {
+				return "def";
+			}
+		});
+		generator.end(TestUtil.noConflict);
+		assertEquals(2, rendered[0]);
+		assertContents(generator, "file1.txt", "cba");
+		assertContents(generator, "file2.txt", "def");
+	}
+
+	@Test
+	public void testSession() throws Exception {
+		IterativeFileGenerator generator = createGenerator("session");
+		
+		GeneratorSession session = generator.openSession();
+		try {
+			generator.start(TestUtil.noModification);
+			generator.generate("file1.txt", "abc\ndef\nijk\n");
+			generator.end(TestUtil.noConflict);
+			
+			writeFile(generator, "file1.txt", "aaa\ndef\nijk\n");
+			
+			generator.start(TestUtil.modifications);
+			generator.generate("file1.txt", "abc\ndef\nkji\n");
+			generator.end(TestUtil.noConflict);
+			
+			assertContents(generator, "file1.txt", "aaa\ndef\nkji\n");
+		} finally {
+			session.close();
+		}
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc\ndef\nkji\n");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "file1.txt", "aaa\ndef\nkji\n");
+	}
+
+	@Test
+	public void testUntouchedFolders() throws Exception {
+		IterativeFileGenerator generator = createGenerator("untouchedFolders");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "abc");
+		generator.generate("b/file2.txt", "abc");
+		generator.generate("c/d/file3.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "a/file1.txt", "cba");
+		
+		// user modified 'a', generation modifies 'b'
+		generator.start(TestUtil.modifications);
+		generator.generate("a/file1.txt", "abc");
+		generator.generate("b/file2.txt", "def");
+		generator.generate("c/d/file3.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "a/file1.txt", "cba");
+		assertContents(generator, "b/file2.txt", "def");
+		assertContents(generator, "c/d/file3.txt", "abc");
+		
+		// no user modification since last merge
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "abc");
+		generator.generate("b/file2.txt", "def");
+		generator.generate("c/d/file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "a/file1.txt", "cba");
+		assertContents(generator, "b/file2.txt", "def");
+		assertContents(generator, "c/d/file3.txt", "ghi");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "abc");
+		generator.generate("b/file2.txt", "def");
+		generator.generate("c/d/file3.txt", "ghi");
+		generator.end(TestUtil.noConflict);
+	}
+
+	@Test
+	public void testServiceFailure() throws Exception {
+		IterativeFileGenerator generator = createGenerator("serviceFailure");
+		final boolean[] failing = { false };
+		
+		GenerationService service = new GenerationService(generator, new GenerationService.GenerationTask() {
+			@Override
+			public void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception {
+				generator.generate("file1.txt", "abc\n");
+				if ( failing[0] ) {
+					generator.generate("partial.txt", "partial\n");
+					throw new IllegalStateException("Generation failure");
+				}
+			}
+		}, TestUtil.noModification, TestUtil.noConflict);
+		service.setCoalesceDelay(50);
+		service.start();
+		try {
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+			
+			// the failed cycle is rolled back
+			failing[0] = true;
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertTrue(service.getLastError() instanceof IllegalStateException);
+			assertFalse(new File(generator.getOutputFolder(), "partial.txt").exists());
+			
+			failing[0] = false;
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+		} finally {
+			service.close();
+		}
+		assertFalse(new File(generator.getOutputFolder(), "partial.txt").exists());
+		
+		// the partial generation never became history
+		final Repository repository = new FileRepositoryBuilder().setGitDir(new File(generator.getOutputFolder(), IterativeFileGenerator.HANNAH_REPOSITORY_FILENAME)).build();
+		try {
+			for ( String branch : Arrays.asList(IterativeFileGenerator.MASTER, IterativeFileGenerator.GENERATION) ) {
+				for ( RevCommit commit : new Git(repository).log().add(repository.resolve(branch)).call() ) {
+					assertFalse(commit.getFullMessage(), commit.getFullMessage().startsWith("User modifications"));
+				}
+			}
+			assertNull(findBlob(repository, IterativeFileGenerator.MASTER, "partial.txt"));
+			assertNull(findBlob(repository, IterativeFileGenerator.GENERATION, "partial.txt"));
+		} finally {
+			repository.close();
+		}
+	}
+	
+	private static ObjectId findBlob(Repository repository, String branch, String path) throws Exception {
+		final RevWalk walk = new RevWalk(repository);
+		try {
+			final TreeWalk tree = TreeWalk.forPath(repository, path, walk.parseCommit(repository.resolve(branch)).getTree());
+			return tree == null ? null : tree.getObjectId(0);
+		} finally {
+			walk.release();
+		}
+	}
+	
+	@Test
+	public void testService() throws Exception {
+		IterativeFileGenerator generator = createGenerator("service");
+		final String[] generated = { "abc\ndef\nijk\n" };
+		
+		GenerationService service = new GenerationService(generator, new GenerationService.GenerationTask() {
+			@Override
+			public void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception {
+				generator.generate("folder/file1.txt", generated[0]);
+			}
+		}, ModificationHandler.accept, TestUtil.noConflict);
+		service.setCoalesceDelay(200);
+		service.start();
+		try {
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+			assertContents(generator, "folder/file1.txt", "abc\ndef\nijk\n");
+			
+			writeFile(generator, "folder/file1.txt", "aaa\ndef\nijk\n");
+			generated[0] = "abc\ndef\nkji\n";
+			
+			// both requests are coalesced
+			service.requestGeneration(Arrays.asList("folder"));
+			service.requestGeneration(Arrays.asList("folder"));
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+			assertEquals(2, service.getCycles());
+			assertContents(generator, "folder/file1.txt", "aaa\ndef\nkji\n");
+			assertTrue(service.getLastModifiedPaths().contains("folder/file1.txt"));
+			
+			// generated and merged files aren't seen as user modifications
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+			assertEquals(Collections.<String>emptyList(), service.getLastModifiedPaths());
+			
+			// an edit just before the request is seen without delay
+			service.setCoalesceDelay(0);
+			writeFile(generator, "folder/file1.txt", "bbb\ndef\nkji\n");
+			service.requestGeneration();
+			assertTrue(service.awaitIdle(10000));
+			assertEquals(null, service.getLastError());
+			assertEquals(Arrays.asList("folder/file1.txt"), service.getLastModifiedPaths());
+			assertContents(generator, "folder/file1.txt", "bbb\ndef\nkji\n");
+		} finally {
+			service.close();
+		}
+	}
+
 }
@@ -18,11 +18,15 @@ package org.openflexo.hannah;
 
 import static org.openflexo.hannah.TestUtil.assertContents;
 import static org.openflexo.hannah.TestUtil.assertDoesntExist;
+import static org.openflexo.hannah.TestUtil.writeFile;
 
 import java.io.File;
+import java.util.Arrays;
 
 import org.junit.Test;
 
+import static org.junit.Assert.fail;
+
 public class RemovingFilesTests {
 
 	private File baseFolder = new File("tmp/removingFiles");
@@ -80,4 +84,97 @@ public class RemovingFilesTests {
 		assertDoesntExist(generator, "file3.txt");
 	}
 
+	@Test
+	public void testFolders() throws Exception {
+		IterativeFileGenerator generator = createGenerator("folders");
+		
+		// generation one
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.generate("file2.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "file1.txt", "cba");
+		
+		// generation two, moves files into a folder
+		generator.start(TestUtil.modifications);
+		generator.generate("file1.txt", "abc");
+		generator.generate("folder/file2.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "file1.txt", "cba");
+		assertDoesntExist(generator, "file2.txt");
+		assertContents(generator, "folder/file2.txt", "abc");
+		
+		// generation three, removes the folder
+		generator.start(TestUtil.noModification);
+		generator.generate("file1.txt", "abc");
+		generator.end(TestUtil.noConflict);
+
+		assertContents(generator, "file1.txt", "cba");
+		assertDoesntExist(generator, "folder");
+	}
+
+	@Test
+	public void testScope() throws Exception {
+		IterativeFileGenerator generator = createGenerator("scope");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "abc");
+		generator.generate("a/file2.txt", "abc");
+		generator.generate("b/file3.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		writeFile(generator, "b/file3.txt", "cba");
+		
+		// only 'a' is generated, 'b' is kept
+		generator.start(TestUtil.modifications, Arrays.asList("a/"));
+		generator.generate("a/file1.txt", "def");
+		try {
+			generator.generate("b/file3.txt", "def");
+			fail("Generating outside of the scope should fail.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "a/file1.txt", "def");
+		assertDoesntExist(generator, "a/file2.txt");
+		assertContents(generator, "b/file3.txt", "cba");
+		
+		// whole generation
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "def");
+		generator.generate("b/file3.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "a/file1.txt", "def");
+		assertContents(generator, "b/file3.txt", "cba");
+	}
+
+	@Test
+	public void testInvalidScope() throws Exception {
+		IterativeFileGenerator generator = createGenerator("invalidScope");
+		
+		generator.start(TestUtil.noModification);
+		generator.generate("a/file1.txt", "abc");
+		generator.end(TestUtil.noConflict);
+		
+		// prefixes that would delete the repository or go outside the output
+		for ( String prefix : Arrays.asList(".", "./", "a/./b", "a/../../x", "..", "/tmp/x", "a//b", "", ".hannah/objects") ) {
+			try {
+				generator.start(TestUtil.noModification, Arrays.asList("a", prefix));
+				fail("Scope '"+ prefix +"' should be rejected.");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		
+		generator.start(TestUtil.noModification, Arrays.asList("a"));
+		generator.generate("a/file1.txt", "def");
+		generator.end(TestUtil.noConflict);
+		
+		assertContents(generator, "a/file1.txt", "def");
+	}
+
 }
@@ -0,0 +1,271 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jgit.storage.file.PackIndex;
+import org.junit.Test;
+
+/**
+ * <p>Soak harness driving an {@link IterativeFileGenerator} through many 
+ * cycles over a synthetic tree. Each cycle the generator changes some 
+ * files, adds and removes others, and the user edits some files between
+ * cycles. Per cycle latency, repository size, object count and heap usage
+ * are recorded to spot degradations growing with the history.</p>
+ * 
+ * <p>The test runs a few cycles, the main runs a long session:
+ * <pre><code>
+ * java org.openflexo.hannah.SoakTests output cycles files report.csv
+ * </code></pre>
+ * </p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class SoakTests {
+
+	private File baseFolder = new File("tmp/soak");
+	
+	/** Lines in each generated file. */
+	private final static int LINES = 40;
+	
+	/** Files in each folder. */
+	private final static int FILES_PER_FOLDER = 20;
+	
+	@Test
+	public void testSoak() throws Exception {
+		final File output = new File(baseFolder, "soak");
+		FileUtil.delete(output);
+		
+		final List<CycleRecord> records = run(output, 20, 60, null);
+		assertEquals(20, records.size());
+		for ( CycleRecord record : records ) {
+			assertTrue(record.objects > 0);
+			assertTrue(record.repositorySize > 0);
+		}
+	}
+	
+	/**
+	 * <p>Runs the soak harness.</p>
+	 * @param output output folder.
+	 * @param cycles number of generation cycles.
+	 * @param files number of files in the synthetic tree.
+	 * @param report stream receiving one CSV line per cycle, may be null.
+	 * @return the records of all cycles.
+	 */
+	public static List<CycleRecord> run(File output, int cycles, int files, PrintStream report) throws Exception {
+		final Random random = new Random(42);
+		final IterativeFileGenerator generator = new IterativeFileGenerator(output);
+		
+		// synthetic model: a revision number per line of each file
+		final List<int[]> model = new ArrayList<int[]>();
+		for ( int i=0; i<files; i++ ) {
+			model.add(new int[LINES]);
+		}
+		
+		if ( report != null ) {
+			report.println(CycleRecord.HEADER);
+		}
+		
+		final List<CycleRecord> records = new ArrayList<CycleRecord>(cycles);
+		for ( int cycle=0; cycle<cycles; cycle++ ) {
+			churn(random, model, cycle);
+			
+			final long start = System.nanoTime();
+			generator.start(ModificationHandler.accept);
+			for ( int i=0; i<model.size(); i++ ) {
+				final int[] lines = model.get(i);
+				if ( lines != null ) {
+					generator.generate(filename(i), render(i, lines));
+				}
+			}
+			generator.end(ConflictHandler.user);
+			final long time = System.nanoTime() - start;
+			
+			final CycleRecord record = new CycleRecord(cycle, time / 1000000, output);
+			records.add(record);
+			if ( report != null ) {
+				report.println(record);
+			}
+			
+			edit(random, generator, model);
+		}
+		return records;
+	}
+	
+	/** Generator changes: modifies lines, removes and adds files. */
+	private static void churn(Random random, List<int[]> model, int cycle) {
+		if ( cycle == 0 ) return;
+		for ( int i=0; i<model.size(); i++ ) {
+			final int[] lines = model.get(i);
+			final int draw = random.nextInt(100);
+			if ( lines == null ) {
+				// removed files come back from time to time
+				if ( draw < 10 ) model.set(i, new int[LINES]);
+			} else if ( draw < 2 ) {
+				model.set(i, null);
+			} else if ( draw < 20 ) {
+				lines[random.nextInt(LINES)] = cycle;
+			}
+		}
+		if ( random.nextInt(100) < 20 ) {
+			model.add(new int[LINES]);
+		}
+	}
+	
+	/** User changes: edits one line of some generated files. */
+	private static void edit(Random random, IterativeFileGenerator generator, List<int[]> model) throws IOException {
+		for ( int i=0; i<model.size(); i++ ) {
+			if ( model.get(i) == null || random.nextInt(100) >= 5 ) continue;
+			
+			final File file = new File(generator.getOutputFolder(), filename(i));
+			final String[] lines = FileUtil.loadContents(file, "UTF-8").split("\n");
+			lines[random.nextInt(lines.length)] = "user edit " + random.nextInt();
+			
+			final StringBuilder contents = new StringBuilder();
+			for ( String line : lines ) {
+				contents.append(line).append('\n');
+			}
+			FileUtil.writeFile(file, contents.toString(), "UTF-8");
+		}
+	}
+	
+	private static String filename(int index) {
+		return "folder" + (index / FILES_PER_FOLDER) + "/file" + index + ".txt";
+	}
+	
+	private static String render(int index, int[] lines) {
+		final StringBuilder contents = new StringBuilder();
+		for ( int i=0; i<lines.length; i++ ) {
+			contents.append("file ").append(index).append(" line ").append(i);
+			contents.append(" revision ").append(lines[i]).append('\n');
+		}
+		return contents.toString();
+	}
+	
+	/**
+	 * <p>Measures of one cycle.</p>
+	 */
+	public static class CycleRecord {
+		
+		static final String HEADER = "cycle,latency_ms,repository_bytes,objects,heap_bytes";
+		
+		final int cycle;
+		
+		/** Time for start, generate and end in milliseconds. */
+		final long latency;
+		
+		/** Size of the repository folder in bytes. */
+		final long repositorySize;
+		
+		/** Loose and packed objects. */
+		final long objects;
+		
+		/** Used heap after the cycle. */
+		final long heap;
+		
+		CycleRecord(int cycle, long latency, File output) throws IOException {
+			this.cycle = cycle;
+			this.latency = latency;
+			
+			final File repository = new File(output, ".hannah");
+			this.repositorySize = size(repository);
+			this.objects = countObjects(new File(repository, "objects"));
+			
+			final Runtime runtime = Runtime.getRuntime();
+			this.heap = runtime.totalMemory() - runtime.freeMemory();
+		}
+		
+		private static long size(File file) {
+			if ( file.isDirectory() == false ) return file.length();
+			long size = 0;
+			final File[] children = file.listFiles();
+			if ( children != null ) {
+				for ( File child : children ) {
+					size += size(child);
+				}
+			}
+			return size;
+		}
+		
+		private static long countObjects(File objects) throws IOException {
+			long count = 0;
+			final File[] children = objects.listFiles();
+			if ( children == null ) return 0;
+			for ( File child : children ) {
+				final String name = child.getName();
+				if ( name.length() == 2 ) {
+					// loose objects folder
+					final String[] loose = child.list();
+					if ( loose != null ) count += loose.length;
+				} else if ( name.equals("pack") ) {
+					final File[] packs = child.listFiles();
+					if ( packs == null ) continue;
+					for ( File pack : packs ) {
+						if ( pack.getName().endsWith(".idx") ) {
+							count += PackIndex.open(pack).getObjectCount();
+						}
+					}
+				}
+			}
+			return count;
+		}
+		
+		@Override
+		public String toString() {
+			return cycle + "," + latency + "," + repositorySize + "," + objects + "," + heap;
+		}
+	}
+	
+	/**
+	 * <p>Runs a long session and prints the report. Arguments are the 
+	 * output folder, the number of cycles, the number of files and 
+	 * optionally the report file (standard output by default).</p>
+	 */
+	public static void main(String[] args) throws Exception {
+		final File output = new File(args.length > 0 ? args[0] : "tmp/soak/main");
+		final int cycles = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		final int files = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		final PrintStream report = args.length > 3 ? new PrintStream(new File(args[3]), "UTF-8") : System.out;
+		
+		FileUtil.delete(output);
+		try {
+			final List<CycleRecord> records = run(output, cycles, files, report);
+			
+			// compares the beginning and the end of the session
+			final int window = Math.max(1, records.size() / 10);
+			long first = 0;
+			long last = 0;
+			for ( int i=0; i<window; i++ ) {
+				first += records.get(i).latency;
+				last += records.get(records.size() - 1 - i).latency;
+			}
+			System.err.println("Latency ratio last/first " + window + " cycles: " + ((double) last / Math.max(1, first)));
+		} finally {
+			if ( report != System.out ) report.close();
+		}
+	}
+}
@@ -0,0 +1,391 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.openflexo.hannah.IterativeFileGenerator.ArchiveFormat;
+
+/**
+ * <p>The {@link ArchiveExporter} writes the files of a commit in a zip or 
+ * tar archive straight from the object database, the working tree isn't
+ * used.</p>
+ * 
+ * <p>A reader thread walks the tree and loads the blobs while the calling
+ * thread compresses and writes the archive. Loaded blobs are handed over 
+ * through a bounded queue, blobs above the big file threshold are streamed
+ * by the writer.</p>
+ * 
+ * <p>Zip entries carry the Unix mode (executable files and symbolic 
+ * links) in an ASi extra field, it's read by tools like Apache Commons 
+ * Compress but ignored by Info-ZIP, the contents of a symbolic link entry 
+ * is its target.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class ArchiveExporter {
+
+	/** Number of entries loaded ahead of the writer. */
+	private final static int QUEUE_SIZE = 64;
+	
+	/** Tar block size. */
+	private final static int BLOCK = 512;
+	
+	/** Header id of the ASi Unix extra field. */
+	private final static int ASI_HEADER = 0x756e;
+	
+	/** Marks the end of the entries. */
+	private final static Entry END = new Entry(null, null, null, null);
+	
+	private final Repository repository;
+	
+	/** Size above which blobs aren't loaded by the reader thread. */
+	private final long bigFileThreshold;
+	
+	ArchiveExporter(Repository repository, long bigFileThreshold) {
+		this.repository = repository;
+		this.bigFileThreshold = bigFileThreshold;
+	}
+	
+	/**
+	 * <p>Writes the files of given commit in an archive. The stream isn't 
+	 * closed.</p>
+	 * @param commitId the commit to export.
+	 * @param format archive format.
+	 * @param paths path prefixes to export, null or empty for all files.
+	 * @param out stream to write to.
+	 */
+	void export(ObjectId commitId, ArchiveFormat format, Collection<String> paths, final OutputStream out) throws IOException {
+		final RevWalk walk = new RevWalk(repository);
+		final RevCommit commit;
+		try {
+			commit = walk.parseCommit(commitId);
+		} finally {
+			walk.release();
+		}
+		
+		final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+		final Reader reader = new Reader(commit, paths, queue);
+		final Thread thread = new Thread(reader, "Hannah export");
+		thread.setDaemon(true);
+		thread.start();
+		try {
+			final long time = commit.getCommitTime() * 1000L;
+			if ( format == ArchiveFormat.ZIP ) {
+				writeZip(queue, time, out);
+			} else {
+				writeTar(queue, time, out);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export interrupted.");
+		} finally {
+			// stops the reader if the writer failed
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if ( reader.error != null ) {
+			throw new IOException("Can't read commit " + commit.name() + ".", reader.error);
+		}
+	}
+	
+	private void writeZip(BlockingQueue<Entry> queue, long time, final OutputStream out) throws IOException, InterruptedException {
+		// the zip stream is finished but the given stream is left open
+		final ZipOutputStream zip = new ZipOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				out.write(b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+		});
+		Entry entry = queue.take();
+		while ( entry != END ) {
+			final ZipEntry zipEntry = new ZipEntry(entry.path);
+			zipEntry.setTime(time);
+			zipEntry.setExtra(unixExtraField(entry));
+			zip.putNextEntry(zipEntry);
+			entry.copyTo(zip);
+			zip.closeEntry();
+			entry = queue.take();
+		}
+		zip.finish();
+	}
+	
+	private void writeTar(BlockingQueue<Entry> queue, long time, OutputStream out) throws IOException, InterruptedException {
+		final byte[] padding = new byte[BLOCK];
+		Entry entry = queue.take();
+		while ( entry != END ) {
+			final long size = entry.size();
+			if ( entry.mode == FileMode.SYMLINK ) {
+				writeTarHeader(out, entry.path, entry.mode, '2', 0, time, entry.getTarget());
+			} else {
+				writeTarHeader(out, entry.path, entry.mode, '0', size, time, null);
+				entry.copyTo(out);
+				final int remainder = (int) (size % BLOCK);
+				if ( remainder > 0 ) {
+					out.write(padding, 0, BLOCK - remainder);
+				}
+			}
+			entry = queue.take();
+		}
+		// end of archive
+		out.write(padding);
+		out.write(padding);
+	}
+	
+	/**
+	 * <p>Builds the ASi extra field giving the Unix mode of an entry.</p>
+	 */
+	private static byte[] unixExtraField(Entry entry) {
+		final byte[] target = entry.mode == FileMode.SYMLINK ? Constants.encode(entry.getTarget()) : new byte[0];
+		// mode, link size, uid, gid and link
+		final byte[] data = new byte[10 + target.length];
+		putShort(data, 0, (entry.mode == FileMode.SYMLINK ? 0120000 : 0100000) | unixPermissions(entry.mode));
+		putInt(data, 2, target.length);
+		System.arraycopy(target, 0, data, 10, target.length);
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		
+		final byte[] field = new byte[8 + data.length];
+		putShort(field, 0, ASI_HEADER);
+		putShort(field, 2, 4 + data.length);
+		putInt(field, 4, (int) crc.getValue());
+		System.arraycopy(data, 0, field, 8, data.length);
+		return field;
+	}
+	
+	private static int unixPermissions(FileMode mode) {
+		return mode == FileMode.EXECUTABLE_FILE ? 0755 : ( mode == FileMode.SYMLINK ? 0777 : 0644 );
+	}
+	
+	/** Little endian short used by zip. */
+	private static void putShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+	}
+	
+	/** Little endian int used by zip. */
+	private static void putInt(byte[] buffer, int offset, int value) {
+		putShort(buffer, offset, value);
+		putShort(buffer, offset + 2, value >>> 16);
+	}
+	
+	/**
+	 * <p>Writes a ustar header, long names are split between prefix and 
+	 * name or written in a GNU long name entry. Names are split on their 
+	 * UTF-8 bytes.</p>
+	 */
+	private void writeTarHeader(OutputStream out, String path, FileMode mode, char type, long size, long time, String target) throws IOException {
+		final byte[] name = Constants.encode(path);
+		byte[] prefix = new byte[0];
+		byte[] shortName = name;
+		if ( name.length > 100 ) {
+			final int split = findSplit(name);
+			if ( split > 0 ) {
+				prefix = Arrays.copyOfRange(name, 0, split);
+				shortName = Arrays.copyOfRange(name, split + 1, name.length);
+			} else {
+				// GNU long name entry followed by the real entry
+				final byte[] longName = Arrays.copyOf(name, name.length + 1);
+				writeTarHeader(out, "././@LongLink", FileMode.REGULAR_FILE, 'L', longName.length, 0, null);
+				out.write(longName);
+				out.write(new byte[(BLOCK - longName.length % BLOCK) % BLOCK]);
+				shortName = Arrays.copyOf(name, 100);
+			}
+		}
+		
+		final byte[] header = new byte[BLOCK];
+		put(header, 0, 100, shortName);
+		putOctal(header, 100, 8, unixPermissions(mode));
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		if ( size > 077777777777L ) {
+			throw new IOException("File '"+ path +"' is too large for a tar archive.");
+		}
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, time / 1000);
+		header[156] = (byte) type;
+		if ( target != null ) {
+			put(header, 157, 100, Constants.encode(target));
+		}
+		put(header, 257, 6, Constants.encodeASCII("ustar"));
+		put(header, 263, 2, Constants.encodeASCII("00"));
+		put(header, 345, 155, prefix);
+		
+		// checksum computed with spaces in the checksum field
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for ( byte b : header ) {
+			checksum += b & 0xff;
+		}
+		final byte[] digits = Constants.encodeASCII(String.format("%06o", checksum));
+		System.arraycopy(digits, 0, header, 148, 6);
+		header[154] = 0;
+		header[155] = ' ';
+		out.write(header);
+	}
+	
+	/** Finds the separator splitting name in a prefix of 155 bytes and a name of 100 bytes, -1 if none. */
+	private static int findSplit(byte[] name) {
+		for ( int i=Math.min(155, name.length - 1); i>0; i-- ) {
+			if ( name[i] == '/' && name.length - i - 1 <= 100 ) return i;
+		}
+		return -1;
+	}
+	
+	private static void put(byte[] header, int offset, int length, byte[] value) {
+		System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+	}
+	
+	private static void putOctal(byte[] header, int offset, int length, long value) {
+		final String format = "%0" + (length - 1) + "o";
+		put(header, offset, length - 1, Constants.encodeASCII(String.format(format, value)));
+	}
+	
+	/**
+	 * <p>Walks the tree and queues the entries with their contents.</p>
+	 */
+	private class Reader implements Runnable {
+		
+		private final RevCommit commit;
+		
+		private final Collection<String> paths;
+		
+		private final BlockingQueue<Entry> queue;
+		
+		/** Read failure, null if none. */
+		volatile Exception error;
+		
+		Reader(RevCommit commit, Collection<String> paths, BlockingQueue<Entry> queue) {
+			this.commit = commit;
+			this.paths = paths;
+			this.queue = queue;
+		}
+		
+		@Override
+		public void run() {
+			final ObjectReader reader = repository.newObjectReader();
+			try {
+				final TreeWalk walk = new TreeWalk(reader);
+				try {
+					walk.addTree(commit.getTree());
+					walk.setRecursive(true);
+					if ( paths != null && paths.isEmpty() == false ) {
+						walk.setFilter(PathFilterGroup.createFromStrings(paths));
+					}
+					
+					while ( walk.next() ) {
+						final FileMode mode = walk.getFileMode(0);
+						if ( mode == FileMode.GITLINK ) continue;
+						
+						final ObjectLoader loader = reader.open(walk.getObjectId(0), Constants.OBJ_BLOB);
+						final byte[] contents;
+						if ( loader.isLarge() || loader.getSize() > bigFileThreshold ) {
+							contents = null;
+						} else {
+							contents = loader.getCachedBytes();
+						}
+						queue.put(new Entry(walk.getPathString(), mode, contents, contents == null ? loader : null));
+					}
+				} finally {
+					walk.release();
+				}
+			} catch (InterruptedException e) {
+				// the writer stopped
+				return;
+			} catch (Exception e) {
+				error = e;
+			} finally {
+				reader.release();
+			}
+			
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+				// the writer stopped
+			}
+		}
+	}
+	
+	/**
+	 * <p>A file to write with its contents, loaded or to be streamed.</p>
+	 */
+	private static class Entry {
+		
+		final String path;
+		
+		final FileMode mode;
+		
+		/** Contents if loaded, null if streamed. */
+		final byte[] contents;
+		
+		/** Loader of big blobs. */
+		final ObjectLoader loader;
+		
+		Entry(String path, FileMode mode, byte[] contents, ObjectLoader loader) {
+			this.path = path;
+			this.mode = mode;
+			this.contents = contents;
+			this.loader = loader;
+		}
+		
+		long size() {
+			return contents != null ? contents.length : loader.getSize();
+		}
+		
+		String getTarget() {
+			return contents != null ? RawParseUtils.decode(contents) : "";
+		}
+		
+		void copyTo(OutputStream out) throws IOException {
+			if ( contents != null ) {
+				out.write(contents);
+			} else {
+				loader.copyTo(out);
+			}
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * <p>The {@link BlobCache} keeps the results of path lookups in commit 
+ * trees and decoded blob contents. Both are keyed by object ids which never
+ * change, entries are only evicted when the cache is full, least recently
+ * used first.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class BlobCache {
+
+	/** Maximum number of path lookups kept. */
+	private final static int MAX_PATHS = 4096;
+	
+	/** Maximum size of decoded contents in characters. */
+	private final long maxSize;
+	
+	/** Blob id by commit and path, zero id if the path doesn't exist. */
+	private final Map<String, ObjectId> paths = new LinkedHashMap<String, ObjectId>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ObjectId> eldest) {
+			return size() > MAX_PATHS;
+		}
+	};
+	
+	/** Decoded contents by blob and encoding. */
+	private final LinkedHashMap<String, String> contents = new LinkedHashMap<String, String>(16, 0.75f, true);
+	
+	/** Size of decoded contents in characters. */
+	private long size = 0;
+	
+	/**
+	 * @param maxSize maximum size of decoded contents in characters, larger
+	 * contents aren't cached.
+	 */
+	BlobCache(long maxSize) {
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * <p>Searches the blob of a path in a commit.</p>
+	 * @return the blob id or null if the commit doesn't contain the path.
+	 */
+	synchronized ObjectId findBlob(Repository repository, ObjectId commit, String path) throws IOException {
+		final String key = commit.name() + ':' + path;
+		ObjectId id = paths.get(key);
+		if ( id == null ) {
+			id = ObjectId.zeroId();
+			final RevWalk revWalk = new RevWalk(repository);
+			try {
+				final TreeWalk walk = TreeWalk.forPath(repository, path, revWalk.parseCommit(commit).getTree());
+				if ( walk != null ) {
+					try {
+						if ( walk.getRawMode(0) != 0 && walk.isSubtree() == false ) {
+							id = walk.getObjectId(0);
+						}
+					} finally {
+						walk.release();
+					}
+				}
+			} finally {
+				revWalk.release();
+			}
+			paths.put(key, id.copy());
+		}
+		return ObjectId.zeroId().equals(id) ? null : id;
+	}
+	
+	/**
+	 * <p>Gives the decoded contents of a path in a commit.</p>
+	 * @return the contents or null if the commit doesn't contain the path.
+	 */
+	synchronized String getContents(Repository repository, ObjectId commit, String path, String encoding) throws IOException {
+		final ObjectId id = findBlob(repository, commit, path);
+		if ( id == null ) return null;
+		
+		final String key = id.name() + ' ' + encoding;
+		String text = contents.get(key);
+		if ( text == null ) {
+			final ObjectLoader loader = repository.open(id, Constants.OBJ_BLOB);
+			if ( loader.isLarge() ) {
+				throw new IOException("File '"+ path +"' is too large to be read as text.");
+			}
+			text = RawParseUtils.decode(OutputWriter.getCharset(encoding), loader.getCachedBytes());
+			if ( text.length() <= maxSize ) {
+				contents.put(key, text);
+				size += text.length();
+				evict();
+			}
+		}
+		return text;
+	}
+	
+	/** Removes least recently used contents until the cache fits. */
+	private void evict() {
+		final Iterator<String> iterator = contents.values().iterator();
+		while ( size > maxSize && iterator.hasNext() ) {
+			size -= iterator.next().length();
+			iterator.remove();
+		}
+	}
+}
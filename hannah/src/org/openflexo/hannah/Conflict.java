@@ -22,6 +22,9 @@ package org.openflexo.hannah;
  * contains the description of one conflict between user code and generation
  * code. It also contains the {@link Resolution} to apply to it.</p>
  * 
+ * <p>Conflicts of a {@link ConflictingFile} are views on the file storage,
+ * setting their resolution sets it in the file.</p>
+ * 
  * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
  *
  */
@@ -39,94 +42,86 @@ public class Conflict {
 		GENERATION
 	}
 	
-	/** The {@link Conflict} resolution, User by default. */
-	private Resolution resolution = Resolution.USER;
-	
-	/** The user beginning line for conflict. */
-	private final int userBegin;
-	
-	/** The user ending line for conflict. */
-	private final int userEnd;
-	
-	/** User string. */
-	private final String user;
-	
-	/** The generation beginning line for conflict. */
-	private final int generationBegin;
+	/** File storing the conflict. */
+	private final ConflictingFile file;
 	
-	/** The generation ending line for conflict. */
-	private final int generationEnd;
-	
-	/** Generation string. */
-	private final String generation;
+	/** Index of the conflict in the file. */
+	private final int index;
 
-	/* Protected constructor. */
+	/** 
+	 * Protected constructor, the conflict is stored in a file holding only
+	 * this conflict.
+	 */
 	protected Conflict(int userStart, int userEnd, String user, int generationStart, int generationEnd, String generation) {
-		this.userBegin = userStart;
-		this.userEnd = userEnd;
-		this.user = user;
-		this.generationBegin = generationStart;
-		this.generationEnd = generationEnd;
-		this.generation = generation;
+		this(new ConflictingFile(userStart, userEnd, user, generationStart, generationEnd, generation), 0);
+	}
+	
+	/**
+	 * <p>Creates a view on a conflict stored in a {@link ConflictingFile}.
+	 * Its strings are built each time they're asked.</p>
+	 */
+	Conflict(ConflictingFile file, int index) {
+		this.file = file;
+		this.index = index;
 	}
 
-	/** Gets {@link Resolution} for conflict. */
+	/** Gets {@link Resolution} for conflict, User by default. */
 	public Resolution getResolution() {
-		return resolution;
+		return file.getResolution(index);
 	}
 
 	/** Sets {@link Resolution} for conflict. */
 	public void setResolution(Resolution resolution) {
-		this.resolution = resolution;
+		file.setResolution(index, resolution);
 	}
 
 	/** The user beginning line for conflict. */
 	public int getUserBegin() {
-		return userBegin;
+		return file.getUserBegin(index);
 	}
 	
 	/** The user ending line for conflict. */
 	public int getUserEnd() {
-		return userEnd;
+		return file.getUserEnd(index);
 	}
 	
 	/** User string. */
 	public String getUser() {
-		return user;
+		return file.getUser(index);
 	}
 	
 	/** The generation beginning line for conflict. */
 	public int getGenerationBegin() {
-		return generationBegin;
+		return file.getGenerationBegin(index);
 	}
 	
 	/** The generation ending line for conflict. */
 	public int getGenerationEnd() {
-		return generationEnd;
+		return file.getGenerationEnd(index);
 	}
 	
 	/** Generation string. */
 	public String getGeneration() {
-		return generation;
+		return file.getGeneration(index);
 	}
 	
 	@Override
 	public String toString() {
 		final StringBuilder text = new StringBuilder();
 		text.append("Conflict(");
-		text.append(resolution);
+		text.append(getResolution());
 		text.append(")[");
-		text.append(userBegin);
+		text.append(getUserBegin());
 		text.append(",");
-		text.append(userEnd);
+		text.append(getUserEnd());
 		text.append(",");
-		text.append(user.replaceAll("\\n", "|"));
+		text.append(getUser().replaceAll("\\n", "|"));
 		text.append("][");
-		text.append(generationBegin);
+		text.append(getGenerationBegin());
 		text.append(",");
-		text.append(generationEnd);
+		text.append(getGenerationEnd());
 		text.append(",");
-		text.append(generation.replaceAll("\\n", "|"));
+		text.append(getGeneration().replaceAll("\\n", "|"));
 		text.append("]");
 		return text.toString();
 	}
@@ -51,9 +51,7 @@ public interface ConflictHandler {
 		@Override
 		public void conflicts(List<ConflictingFile> conflictingFiles) {
 			for ( final ConflictingFile file : conflictingFiles ) {
-				for ( final Conflict conflict : file.getConflicts() ) {
-					conflict.setResolution(Resolution.USER);
-				}
+				file.setResolution(Resolution.USER);
 			}
 		}
 	};
@@ -65,9 +63,7 @@ public interface ConflictHandler {
 		@Override
 		public void conflicts(List<ConflictingFile> conflictingFiles) {
 			for ( final ConflictingFile file : conflictingFiles ) {
-				for ( final Conflict conflict : file.getConflicts() ) {
-					conflict.setResolution(Resolution.GENERATION);
-				}
+				file.setResolution(Resolution.GENERATION);
 			}
 		}
 	};
@@ -0,0 +1,42 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * <p>Object ids of the three stages of a path changed by both the user and
+ * the generation. A missing stage (added or deleted on one side) is 
+ * null.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class ConflictingEntry {
+	
+	final String path;
+	
+	ObjectId base;
+	
+	ObjectId user;
+	
+	ObjectId generation;
+	
+	ConflictingEntry(String path) {
+		this.path = path;
+	}
+}
@@ -16,12 +16,19 @@
  * ******************************************************************* */
 package org.openflexo.hannah;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.RandomAccess;
 
 import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.merge.MergeChunk;
 import org.eclipse.jgit.merge.MergeResult;
+import org.eclipse.jgit.util.IntList;
 import org.openflexo.hannah.Conflict.Resolution;
 
 /**
@@ -29,36 +36,137 @@ import org.openflexo.hannah.Conflict.Resolution;
  * generation cycle. It contains a list of {@link Conflict} present in the 
  * file.</p>
  * 
+ * <p>Binary files (and files too large to be merged) aren't merged line by
+ * line, they are presented as a whole-file conflict containing exactly one
+ * {@link Conflict} which selects either the user or the generation version
+ * of the file.</p>
+ * 
+ * <p>Conflicts are stored in primitive arrays: lines bounds in an int array
+ * and resolutions in a byte array. The {@link Conflict}s returned by 
+ * {@link #getConflicts()} are views created on demand, their texts are 
+ * only built when asked.</p>
+ * 
  * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
  *
  */
 public class ConflictingFile {
 
+	/** Index of base, user and generation texts in the {@link MergeResult}. */
+	static final int BASE_SEQUENCE = 0;
+	static final int USER_SEQUENCE = 1;
+	static final int GENERATION_SEQUENCE = 2;
+	
+	/** Values stored for each conflict in bounds. */
+	private static final int USER_BEGIN = 0;
+	private static final int USER_END = 1;
+	private static final int GENERATION_BEGIN = 2;
+	private static final int GENERATION_END = 3;
+	private static final int BASE_BEGIN = 4;
+	private static final int BASE_END = 5;
+	private static final int BOUNDS = 6;
+	
+	/** Resolutions by ordinal. */
+	private static final Resolution[] RESOLUTIONS = Resolution.values();
+	
+	/** Conflict markers written around user and generation texts. */
+	private static final byte[] USER_MARKER = Constants.encode("<<<<<<< user\n");
+	private static final byte[] SEPARATOR_MARKER = Constants.encode("=======\n");
+	private static final byte[] GENERATION_MARKER = Constants.encode(">>>>>>> generation\n");
+	
 	/** File path in the Hannah repository. */
 	private final String path;
 	
-	/** Computed list of {@link Conflict}s. */
-	private final List<Conflict> conflicts;
+	/** User, generation and base begin and end of each conflict. */
+	private final int[] bounds;
+	
+	/** Resolution ordinal of each conflict. */
+	private final byte[] resolutions;
+	
+	/** Views on the conflicts. */
+	private final List<Conflict> conflicts = new ConflictList();
 	
-	/** {@link MergeResult} used to construct the file contents. */
+	/** {@link MergeResult} used to construct the file contents, null for whole-file conflicts. */
 	private final MergeResult<RawText> result;
 	
+	/** User version object id for whole-file conflicts (null if deleted by user). */
+	private final ObjectId userId;
+	
+	/** Generation version object id for whole-file conflicts (null if not generated). */
+	private final ObjectId generationId;
+	
+	/** True if the file is binary. */
+	private final boolean binary;
+	
+	/** User and generation texts of a standalone conflict, null otherwise. */
+	private final String[] texts;
+	
 	public ConflictingFile(String path, MergeResult<RawText> result) {
 		this.path = path;
 		this.result = result;
-		this.conflicts = computeConflicts();
+		this.userId = null;
+		this.generationId = null;
+		this.binary = false;
+		this.texts = null;
+		this.bounds = computeBounds();
+		this.resolutions = new byte[bounds.length / BOUNDS];
+		Arrays.fill(resolutions, (byte) Resolution.USER.ordinal());
 	}
 	
 	/**
-	 * <p>Computes the {@link Conflict} for given file using result.</p>
+	 * <p>Creates a whole-file conflict. Contents aren't loaded, only the 
+	 * object ids of both sides are kept.</p>
 	 */
-	private List<Conflict> computeConflicts() {
-		final List<Conflict> conflicts = new ArrayList<Conflict>();
+	ConflictingFile(String path, ObjectId userId, ObjectId generationId, boolean binary) {
+		this.path = path;
+		this.result = null;
+		this.userId = userId;
+		this.generationId = generationId;
+		this.binary = binary;
+		this.texts = null;
+		this.bounds = new int[] { 0, 1, 0, 1, 0, 0 };
+		this.resolutions = new byte[] { (byte) Resolution.USER.ordinal() };
+	}
+	
+	/**
+	 * <p>Creates a file holding one standalone conflict, for 
+	 * {@link Conflict}s created outside of a merge. It has no path nor 
+	 * contents.</p>
+	 */
+	ConflictingFile(int userBegin, int userEnd, String user, int generationBegin, int generationEnd, String generation) {
+		this.path = null;
+		this.result = null;
+		this.userId = null;
+		this.generationId = null;
+		this.binary = false;
+		this.texts = new String[] { user, generation };
+		this.bounds = new int[] { userBegin, userEnd, generationBegin, generationEnd, 0, 0 };
+		this.resolutions = new byte[] { (byte) Resolution.USER.ordinal() };
+	}
+	
+	/**
+	 * <p>Computes the bounds of each conflict using result. Chunks don't 
+	 * give the base lines of conflicts, the base range of a conflict goes
+	 * from the common lines before it to the common lines after it.</p>
+	 */
+	private int[] computeBounds() {
+		final IntList bounds = new IntList();
+		
+		// end of the last common lines and first conflict after them
+		int baseEnd = 0;
+		int open = 0;
 		
 		MergeChunk userChunk = null;
 		for (MergeChunk chunk : result) {
 			
 			switch ( chunk.getConflictState() ) {
+			case NO_CONFLICT:
+				if ( chunk.getSequenceIndex() == BASE_SEQUENCE ) {
+					closeBaseRanges(bounds, open, chunk.getBegin());
+					open = bounds.size();
+					baseEnd = chunk.getEnd();
+				}
+				break;
+				
 			case FIRST_CONFLICTING_RANGE:
 				userChunk = chunk;
 				break;
@@ -66,13 +174,12 @@ public class ConflictingFile {
 			case NEXT_CONFLICTING_RANGE:
 				assert userChunk != null;
 
-				final String user = getChunkString(userChunk);
-				final String generation = getChunkString(chunk);
-				final Conflict conflict = new Conflict(
-						userChunk.getBegin(), userChunk.getEnd(), user,
-						chunk.getBegin(), chunk.getEnd(), generation
-					);
-				conflicts.add(conflict);
+				bounds.add(userChunk.getBegin());
+				bounds.add(userChunk.getEnd());
+				bounds.add(chunk.getBegin());
+				bounds.add(chunk.getEnd());
+				bounds.add(baseEnd);
+				bounds.add(baseEnd);
 				
 				// resets user
 				userChunk = null;
@@ -81,8 +188,20 @@ public class ConflictingFile {
 		}
 		
 		assert userChunk == null;
+		closeBaseRanges(bounds, open, result.getSequences().get(BASE_SEQUENCE).size());
 
-		return conflicts;
+		final int[] array = new int[bounds.size()];
+		for ( int i=0; i<array.length; i++ ) {
+			array[i] = bounds.get(i);
+		}
+		return array;
+	}
+	
+	/** Sets the base end of conflicts from open to the end of bounds. */
+	private static void closeBaseRanges(IntList bounds, int open, int baseEnd) {
+		for ( int i = open; i < bounds.size(); i += BOUNDS ) {
+			bounds.set(i + BASE_END, baseEnd);
+		}
 	}
 	
 	/**
@@ -92,27 +211,19 @@ public class ConflictingFile {
 	 * <li>the chunk is conflicting and the corresponding {@link Conflict} 
 	 * resolution corresponds to it's side (USER or GENERATION).</li>
 	 * </ul>
-	 * </p>
+	 * Chunks are given in order, conflict is the index of the current 
+	 * conflict.</p>
 	 * @param chunk chunk to test.
+	 * @param conflict index of the conflict for conflicting chunks.
 	 * @return true if needs to be printed.
 	 */
-	private boolean print(MergeChunk chunk) {
+	private boolean print(MergeChunk chunk, int conflict) {
 		switch (chunk.getConflictState() ) {
 		case FIRST_CONFLICTING_RANGE:
-			for ( Conflict conflict : conflicts ) {
-				if ( conflict.getUserBegin() == chunk.getBegin() && conflict.getUserEnd() == chunk.getEnd() ) {
-					return conflict.getResolution() == Resolution.USER;
-				}
-			}
-			return false;
+			return getResolution(conflict) == Resolution.USER;
 	
 		case NEXT_CONFLICTING_RANGE:
-			for ( Conflict conflict : conflicts ) {
-				if ( conflict.getGenerationBegin() == chunk.getBegin() && conflict.getGenerationEnd() == chunk.getEnd() ) {
-					return conflict.getResolution() == Resolution.GENERATION;
-				}
-			}
-			return false;
+			return getResolution(conflict) == Resolution.GENERATION;
 			
 		}
 		return true;
@@ -127,45 +238,224 @@ public class ConflictingFile {
 	}
 	
 	/**
-	 * <p>List of {@link Conflict} in file.</p>
+	 * @return true if the file is binary, binary files are always whole-file
+	 * conflicts.
+	 */
+	public boolean isBinary() {
+		return binary;
+	}
+	
+	/**
+	 * <p>Whole-file conflicts are resolved as a whole, with their only 
+	 * {@link Conflict}.</p>
+	 * @return true if the file is resolved as a whole.
+	 */
+	public boolean isWholeFile() {
+		return result == null;
+	}
+	
+	/**
+	 * <p>For whole-file conflicts, gives the object id of the selected 
+	 * version.</p>
+	 * @return the object id or null if the selected side doesn't contain the file.
+	 */
+	ObjectId getResolvedObjectId() {
+		assert isWholeFile();
+		return getObjectId(getResolution(0));
+	}
+	
+	/**
+	 * <p>For whole-file conflicts, gives the object id of one side.</p>
+	 * @return the object id or null if the side doesn't contain the file.
+	 */
+	ObjectId getObjectId(Resolution side) {
+		return side == Resolution.USER ? userId : generationId;
+	}
+	
+	/**
+	 * <p>List of {@link Conflict} in file. The list can't be modified, its 
+	 * {@link Conflict}s are views on the file.</p>
 	 */
 	public List<Conflict> getConflicts() {
 		return conflicts;
 	}
+	
+	/**
+	 * <p>Sets the same resolution to all conflicts of the file.</p>
+	 * @param resolution the resolution to use.
+	 */
+	public void setResolution(Resolution resolution) {
+		Arrays.fill(resolutions, (byte) resolution.ordinal());
+	}
+	
+	Resolution getResolution(int conflict) {
+		return RESOLUTIONS[resolutions[conflict]];
+	}
+	
+	void setResolution(int conflict, Resolution resolution) {
+		resolutions[conflict] = (byte) resolution.ordinal();
+	}
+	
+	int getUserBegin(int conflict) {
+		return bounds[conflict * BOUNDS + USER_BEGIN];
+	}
+	
+	int getUserEnd(int conflict) {
+		return bounds[conflict * BOUNDS + USER_END];
+	}
+	
+	int getGenerationBegin(int conflict) {
+		return bounds[conflict * BOUNDS + GENERATION_BEGIN];
+	}
+	
+	int getGenerationEnd(int conflict) {
+		return bounds[conflict * BOUNDS + GENERATION_END];
+	}
+	
+	int getBaseBegin(int conflict) {
+		return bounds[conflict * BOUNDS + BASE_BEGIN];
+	}
+	
+	int getBaseEnd(int conflict) {
+		return bounds[conflict * BOUNDS + BASE_END];
+	}
+	
+	/** User text of given conflict, empty for whole-file conflicts. */
+	String getUser(int conflict) {
+		if ( texts != null ) return texts[0];
+		if ( isWholeFile() ) return "";
+		return getLines(USER_SEQUENCE, getUserBegin(conflict), getUserEnd(conflict));
+	}
+	
+	/** Generation text of given conflict, empty for whole-file conflicts. */
+	String getGeneration(int conflict) {
+		if ( texts != null ) return texts[1];
+		if ( isWholeFile() ) return "";
+		return getLines(GENERATION_SEQUENCE, getGenerationBegin(conflict), getGenerationEnd(conflict));
+	}
 
 	/**
 	 * <p>Constructs string from a {@link MergeChunk}.</p>
 	 * @param chunk chunk to construct.
-	 * @param text the referenced {@link RawText}. 
 	 * @return a String.
 	 */
 	private String getChunkString(MergeChunk chunk) {
-		final RawText text = result.getSequences().get(chunk.getSequenceIndex());
+		return getLines(chunk.getSequenceIndex(), chunk.getBegin(), chunk.getEnd());
+	}
+	
+	/**
+	 * <p>Constructs string from lines of one of the merged texts.</p>
+	 * @param sequence index of the text in the {@link MergeResult}.
+	 * @param begin first line.
+	 * @param end line after the last one.
+	 * @return a String.
+	 */
+	String getLines(int sequence, int begin, int end) {
+		final RawText text = result.getSequences().get(sequence);
 
 		final StringBuilder string = new StringBuilder();
-		for (int i = chunk.getBegin(); i < chunk.getEnd(); i++) {
+		for (int i = begin; i < end; i++) {
 			string.append(text.getString(i));
 			string.append("\n");
 		}
 		return string.toString();
 	}
 	
+	/**
+	 * <p>Writes lines of one of the merged texts without decoding them.</p>
+	 * @param sequence index of the text in the {@link MergeResult}.
+	 * @param begin first line.
+	 * @param end line after the last one.
+	 * @param out stream to write to.
+	 */
+	void writeLines(int sequence, int begin, int end, OutputStream out) throws IOException {
+		final RawText text = result.getSequences().get(sequence);
+		for (int i = begin; i < end; i++) {
+			text.writeLine(out, i);
+			out.write('\n');
+		}
+	}
+	
 	/**
 	 * <p>Returns the contents of the file using the resolution for each
-	 * {@link Conflict}.</p>
+	 * {@link Conflict}. Whole-file conflicts contents aren't available as 
+	 * text.</p>
+	 * @throws IllegalStateException if the file is a whole-file conflict.
 	 */
 	public String getContents() {
+		if ( isWholeFile() ) {
+			throw new IllegalStateException("File '"+ path +"' has no text contents.");
+		}
+		
 		final StringBuilder text = new StringBuilder();
 		
+		int conflict = 0;
 		for (final MergeChunk chunk : result) {
 			// checks if it needs to be printed
-			if ( print(chunk) ) {
+			if ( print(chunk, conflict) ) {
 				text.append(getChunkString(chunk));
 			}
+			if ( chunk.getConflictState() == MergeChunk.ConflictState.NEXT_CONFLICTING_RANGE ) {
+				conflict += 1;
+			}
 		}
 		return text.toString();
 	}
 	
+	/**
+	 * <p>Writes the contents of the file using the resolution for each
+	 * {@link Conflict}. Lines are copied without being decoded, the contents
+	 * is never fully built in memory.</p>
+	 * @param out stream to write to.
+	 * @throws IllegalStateException if the file is a whole-file conflict.
+	 */
+	public void writeContents(OutputStream out) throws IOException {
+		if ( isWholeFile() ) {
+			throw new IllegalStateException("File '"+ path +"' has no text contents.");
+		}
+		
+		int conflict = 0;
+		for (final MergeChunk chunk : result) {
+			// checks if it needs to be printed
+			if ( print(chunk, conflict) ) {
+				writeLines(chunk.getSequenceIndex(), chunk.getBegin(), chunk.getEnd(), out);
+			}
+			if ( chunk.getConflictState() == MergeChunk.ConflictState.NEXT_CONFLICTING_RANGE ) {
+				conflict += 1;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Writes the contents of the file with both sides of each conflict
+	 * between conflict markers, resolutions aren't used.</p>
+	 * @param out stream to write to.
+	 * @throws IllegalStateException if the file is a whole-file conflict.
+	 */
+	void writeMarkers(OutputStream out) throws IOException {
+		if ( isWholeFile() ) {
+			throw new IllegalStateException("File '"+ path +"' has no text contents.");
+		}
+		
+		for (final MergeChunk chunk : result) {
+			switch (chunk.getConflictState() ) {
+			case FIRST_CONFLICTING_RANGE:
+				out.write(USER_MARKER);
+				writeLines(chunk.getSequenceIndex(), chunk.getBegin(), chunk.getEnd(), out);
+				out.write(SEPARATOR_MARKER);
+				break;
+				
+			case NEXT_CONFLICTING_RANGE:
+				writeLines(chunk.getSequenceIndex(), chunk.getBegin(), chunk.getEnd(), out);
+				out.write(GENERATION_MARKER);
+				break;
+				
+			default:
+				writeLines(chunk.getSequenceIndex(), chunk.getBegin(), chunk.getEnd(), out);
+			}
+		}
+	}
+	
 	@Override
 	public String toString() {
 		final StringBuilder text = new StringBuilder();
@@ -174,4 +464,23 @@ public class ConflictingFile {
 		return text.toString();
 	}
 	
+	/**
+	 * <p>List creating a {@link Conflict} view for each access.</p>
+	 */
+	private class ConflictList extends AbstractList<Conflict> implements RandomAccess {
+		
+		@Override
+		public Conflict get(int index) {
+			if ( index < 0 || index >= resolutions.length ) {
+				throw new IndexOutOfBoundsException("Conflict " + index + " of " + resolutions.length);
+			}
+			return new Conflict(ConflictingFile.this, index);
+		}
+		
+		@Override
+		public int size() {
+			return resolutions.length;
+		}
+	}
+	
 }
@@ -0,0 +1,39 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.IOException;
+
+/**
+ * <p>A {@link ContentsSupplier} renders the contents of a generated file on
+ * demand. It's given to 
+ * {@link IterativeFileGenerator#generateIfChanged(String, String, ContentsSupplier)}
+ * which only calls it when the inputs of the file changed since last 
+ * generation.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public interface ContentsSupplier {
+
+	/**
+	 * @return the contents of the generated file.
+	 * @throws IOException if contents can't be rendered.
+	 */
+	String getContents() throws IOException;
+	
+}
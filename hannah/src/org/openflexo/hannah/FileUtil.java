@@ -16,13 +16,22 @@
  * ******************************************************************* */
 package org.openflexo.hannah;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+
+import org.openflexo.hannah.OutputWriter.Durability;
 
 /**
  * <p>Sets of utility function for files.</p>
@@ -32,72 +41,164 @@ import java.io.OutputStream;
  */
 public class FileUtil {
 
+	/** Names of temporary files, the target name and a random number. */
+	private static final Pattern TEMPORARY_NAME = Pattern.compile("\\..+\\.[0-9a-f]{1,16}\\.tmp");
+	
+	/** Writer used by static methods, files aren't forced. */
+	private static final OutputWriter writer = new OutputWriter(Durability.NONE);
+	
 	/** Writes given contents to destination file. */
 	public static void writeFile(File destinationFile, String contents, String encoding) throws IOException {
-		OutputStream stream = new BufferedOutputStream( new FileOutputStream(destinationFile));
-		stream.write(contents.getBytes(encoding));
-		stream.close();
+		writer.write(destinationFile, contents, encoding);
+	}
+
+	/**
+	 * <p>Writes given binary contents to destination file. Contents are
+	 * written to a temporary file renamed to the destination, missing 
+	 * parent folders are created.</p>
+	 */
+	public static void writeFile(File destinationFile, byte[] contents) throws IOException {
+		writer.write(destinationFile, contents);
 	}
 
 	/**
 	 * <p>Loads a file contents as a String using platform encoding.</p>
 	 * @param file file to load.
 	 * @return the file contents as a {@link String}.
-	 * @throws Exception 
+	 * @throws IOException 
 	 */
 	public static String loadContents(File file) throws IOException {
-		final StringBuilder contents = new StringBuilder();
-		final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file));
+		return loadContents(file, Charset.defaultCharset().name());
+	}
+	
+	/**
+	 * <p>Loads a file contents as a String using given encoding.</p>
+	 * @param file file to load.
+	 * @param encoding contents encoding.
+	 * @return the file contents as a {@link String}.
+	 * @throws IOException 
+	 */
+	public static String loadContents(File file, String encoding) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), encoding);
+	}
+
+	/**
+	 * <p>Checks if file contents is equals to given contents. The file is
+	 * mapped and compared to the encoded contents.</p>
+	 */
+	public static boolean checkContents(File file, String contents, String encoding) throws IOException {
+		final byte[] expected = contents.getBytes(encoding);
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
 		try {
-			final byte[] buffer = new byte[1024];
-			int read = in.read(buffer);
-			while ( read >= 0 ) {
-				contents.append(new String(buffer, 0, read));
-				read = in.read(buffer);
-			}
+			final long size = channel.size();
+			if ( size != expected.length ) return false;
+			if ( size == 0 ) return true;
+			return channel.map(MapMode.READ_ONLY, 0, size).equals(ByteBuffer.wrap(expected));
 		} finally {
-			in.close();
+			channel.close();
 		}
-		return contents.toString();
 	}
 	
-
-	/** Checks if file contents is equals to given contents. */
-	public static boolean checkContents(File file, String contents, String encoding) throws IOException {
-  		int contentsIndex = 0;
-		final int contentsLength = contents.length();
-		final BufferedInputStream inStream = new BufferedInputStream(new FileInputStream(file));
-
-		try { 
-			byte[] buffer = new byte[256];
-			int read = inStream.read(buffer);
-			while ( read >= 0 ) {
-				// creates string from file
-				String readString = new String(buffer, 0, read, encoding);
-				final int endIndex = contentsIndex+readString.length();
-				
-				// creates string from contents (and check size)
-				if ( contentsIndex >= contentsLength || endIndex > contentsLength ) return false;
-				String contentsLocalString = contents.substring(contentsIndex, endIndex);
-				contentsIndex = endIndex +1;
-				// tests equality
-				if ( !readString.equals(contentsLocalString) ) return false;
-				
-				// until now contents of string and file is equal.
-				read = inStream.read(buffer);
+	/**
+	 * <p>Creates an empty temporary file next to target, creating missing
+	 * parent folders.</p>
+	 */
+	static Path createTemporaryFile(Path target) throws IOException {
+		final Path parent = target.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+		
+		// created without attributes to get the default mode, not 0600
+		final String prefix = "." + target.getFileName() + ".";
+		while ( true ) {
+			final Path temporary = parent.resolve(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+			try {
+				return Files.createFile(temporary);
+			} catch (FileAlreadyExistsException e) {
+				// tries another name
 			}
+		}
+	}
+	
+	/**
+	 * @return true if name is the one of a temporary file created by 
+	 * {@link #createTemporaryFile(Path)}.
+	 */
+	static boolean isTemporaryFile(String name) {
+		return TEMPORARY_NAME.matcher(name).matches();
+	}
+	
+	/**
+	 * <p>Gives target the permissions of source if it exists, for instance
+	 * to keep the executable bits of a replaced file. Nothing is done on 
+	 * file systems without POSIX permissions.</p>
+	 */
+	static void copyPermissions(Path source, Path target) throws IOException {
+		if ( Files.isRegularFile(source) == false ) return;
+		try {
+			Files.setPosixFilePermissions(target, Files.getPosixFilePermissions(source));
+		} catch (UnsupportedOperationException e) {
+			// no POSIX permissions
+		}
+	}
+	
+	/**
+	 * <p>Renames source to target, replacing it. The rename is atomic when
+	 * the file system supports it.</p>
+	 */
+	static void moveAtomically(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * @return false if the file system or the user can't create symbolic 
+	 * links.
+	 */
+	static boolean createSymbolicLink(Path link, Path target) throws IOException {
+		try {
+			Files.createSymbolicLink(link, target);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * <p>Forces given file or folder to the storage device. Some platforms 
+	 * can't open folders, they are then ignored.</p>
+	 */
+	static void force(Path path) throws IOException {
+		final boolean folder = Files.isDirectory(path);
+		final FileChannel channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (IOException e) {
+			if ( folder ) return;
+			throw e;
+		}
+		try {
+			channel.force(true);
+		} catch (IOException e) {
+			if ( folder == false ) throw e;
 		} finally {
-			inStream.close();
+			channel.close();
 		}
-		return contentsIndex > contentsLength;
 	}
 	
 	/**
 	 * <p>Recursively deletes given file or folder.</p>
-	 * @param file to delete, also works with folders.
+	 * @param file to delete, also works with folders. Symbolic links are
+	 * deleted, not followed.
 	 */
 	public static void delete(File file) {
-		if ( file.isDirectory() ) {
+		if ( file.isDirectory() && Files.isSymbolicLink(file.toPath()) == false ) {
 			// removes members.
 			final File[] children = file.listFiles();
 			if ( children != null ) {
@@ -0,0 +1,168 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.PackLock;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * <p>The {@link GenerationBundle} replicates the generation and master 
+ * branches of a Hannah repository to another one using Git bundles. A
+ * bundle only contains the objects which aren't reachable from the commits
+ * the replica already has, its size depends on the changes, not on the size
+ * of the output.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class GenerationBundle {
+
+	/** Replicated branches. */
+	private final static String[] BRANCHES = { IterativeFileGenerator.GENERATION, IterativeFileGenerator.MASTER };
+	
+	/** First line of a bundle. */
+	private final static String BUNDLE_SIGNATURE = "# v2 git bundle";
+	
+	private final Repository repository;
+	
+	GenerationBundle(Repository repository) {
+		this.repository = repository;
+	}
+	
+	/**
+	 * <p>Writes a bundle with the replicated branches.</p>
+	 * @param known commits the replica already has, null or empty for a 
+	 * full bundle.
+	 * @param out stream to write to.
+	 */
+	void write(Collection<String> known, OutputStream out) throws IOException {
+		final BundleWriter writer = new BundleWriter(repository);
+		for ( String branch : BRANCHES ) {
+			final ObjectId id = repository.resolve(Constants.R_HEADS + branch);
+			if ( id == null ) {
+				throw new IOException("Branch '"+ branch +"' doesn't exist.");
+			}
+			writer.include(Constants.R_HEADS + branch, id);
+		}
+		
+		if ( known != null ) {
+			final RevWalk walk = new RevWalk(repository);
+			try {
+				for ( String commit : known ) {
+					final ObjectId id = ObjectId.fromString(commit);
+					try {
+						writer.assume(walk.parseCommit(id));
+					} catch (MissingObjectException e) {
+						throw new IOException("Commit "+ commit +" isn't known, it can't be assumed.", e);
+					}
+				}
+			} finally {
+				walk.release();
+			}
+		}
+		writer.writeBundle(NullProgressMonitor.INSTANCE, out);
+	}
+	
+	/**
+	 * <p>Reads a bundle: checks that its prerequisite commits are known, 
+	 * stores its pack and replaces the replicated branches. The working tree
+	 * isn't updated.</p>
+	 * <p>The bundle is parsed directly instead of being fetched, Git 
+	 * transports need the SSH library even for local bundles.</p>
+	 * @param in stream to read the bundle from.
+	 */
+	void read(InputStream in) throws IOException {
+		if ( BUNDLE_SIGNATURE.equals(readLine(in)) == false ) {
+			throw new IOException("Stream isn't a Git bundle.");
+		}
+		
+		// prerequisites and references until the empty line
+		final Map<String, ObjectId> refs = new HashMap<String, ObjectId>();
+		String line = readLine(in);
+		while ( line.length() > 0 ) {
+			if ( line.charAt(0) == '-' ) {
+				final ObjectId prerequisite = ObjectId.fromString(line.substring(1, 1 + Constants.OBJECT_ID_STRING_LENGTH));
+				if ( repository.hasObject(prerequisite) == false ) {
+					throw new IOException("Bundle needs commit " + prerequisite.name() + " which isn't in the repository.");
+				}
+			} else {
+				final int space = line.indexOf(' ');
+				refs.put(line.substring(space + 1), ObjectId.fromString(line.substring(0, space)));
+			}
+			line = readLine(in);
+		}
+		
+		final ObjectInserter inserter = repository.newObjectInserter();
+		try {
+			final PackParser parser = inserter.newPackParser(in);
+			parser.setAllowThin(true);
+			parser.setObjectChecking(true);
+			final PackLock lock = parser.parse(NullProgressMonitor.INSTANCE);
+			if ( lock != null ) {
+				lock.unlock();
+			}
+			inserter.flush();
+		} finally {
+			inserter.release();
+		}
+		
+		for ( String branch : BRANCHES ) {
+			final String ref = Constants.R_HEADS + branch;
+			final ObjectId id = refs.get(ref);
+			if ( id == null ) {
+				throw new IOException("Bundle doesn't contain branch '"+ branch +"'.");
+			}
+			final RefUpdate update = repository.updateRef(ref);
+			update.setNewObjectId(id);
+			update.setRefLogMessage("bundle: import", false);
+			final RefUpdate.Result result = update.forceUpdate();
+			if ( result == RefUpdate.Result.LOCK_FAILURE || result == RefUpdate.Result.IO_FAILURE || result == RefUpdate.Result.REJECTED ) {
+				throw new IOException("Can't update '"+ branch +"': " + result);
+			}
+		}
+	}
+	
+	/** Reads a line without reading ahead, the pack follows the header. */
+	private static String readLine(InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int read = in.read();
+		while ( read != '\n' ) {
+			if ( read < 0 ) throw new IOException("Bundle header is truncated.");
+			line.write(read);
+			read = in.read();
+		}
+		return RawParseUtils.decode(line.toByteArray());
+	}
+}
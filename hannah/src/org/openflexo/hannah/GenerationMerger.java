@@ -0,0 +1,342 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuildIterator;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.dircache.DirCacheIterator;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+
+/**
+ * <p>The {@link GenerationMerger} merges the generation branch with-in the
+ * master branch. Paths changed on one side only are taken from this side 
+ * using object ids, contents are never loaded. Paths changed on both sides 
+ * are left to the {@link IterativeFileGenerator} which merges their 
+ * contents.</p>
+ * 
+ * <p>Unlike JGit merge, blob contents are only streamed from the object
+ * database to the working tree, which allows to merge files larger than 
+ * the heap.</p>
+ * 
+ * <p>The merge starts from the generation working tree and folders not 
+ * modified by user are kept as a whole using tree ids, the cost of a merge
+ * depends on the folders modified by user, not on the size of the 
+ * output.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class GenerationMerger {
+
+	/** Tree indexes in the walk. */
+	private final static int BASE = 0;
+	private final static int USER = 1;
+	private final static int GENERATION = 2;
+	private final static int INDEX = 3;
+	
+	private final Repository repository;
+	
+	/** Writer for checked out files. */
+	private final OutputWriter writer;
+	
+	/** Paths changed on both sides. */
+	private final List<ConflictingEntry> conflictingEntries = new ArrayList<ConflictingEntry>();
+	
+	GenerationMerger(Repository repository, OutputWriter writer) {
+		this.repository = repository;
+		this.writer = writer;
+	}
+	
+	/**
+	 * <p>Merges generation branch in master branch. Generation must be 
+	 * checked out with a clean working tree, the head is switched to master
+	 * without checking it out: paths changed by user only are taken from
+	 * master, other paths already contain the generation. Paths changed on 
+	 * both sides keep the generation version in the working tree, their 
+	 * three stages are set in the index and they are registered as 
+	 * conflicting entries.</p>
+	 * @param master master branch name.
+	 * @param generation generation branch name.
+	 * @return true if a merge commit is needed, false if master was already
+	 * up to date.
+	 */
+	boolean merge(String master, String generation) throws IOException {
+		final RevWalk walk = new RevWalk(repository);
+		try {
+			final RevCommit masterCommit = walk.parseCommit(repository.resolve(master));
+			final RevCommit generationCommit = walk.parseCommit(repository.resolve(generation));
+			
+			walk.setRevFilter(RevFilter.MERGE_BASE);
+			walk.markStart(masterCommit);
+			walk.markStart(generationCommit);
+			final RevCommit base = walk.next();
+			
+			update(base, masterCommit, generationCommit);
+			checkoutHead(master);
+			
+			// generation is already merged
+			if ( generationCommit.equals(base) ) return false;
+			
+			repository.writeMergeHeads(Collections.singletonList(generationCommit.copy()));
+			repository.writeMergeCommitMsg("Merge branch '" + generation + "'");
+			return true;
+			
+		} finally {
+			walk.release();
+		}
+	}
+	
+	/**
+	 * <p>Fast-forwards master to generation if master wasn't modified 
+	 * since last merge. Generation must be checked out with a clean working
+	 * tree: the working tree and the index already contain the merge, only
+	 * the head is switched to master.</p>
+	 * @param master master branch name.
+	 * @param generation generation branch name.
+	 * @return true if master has been fast-forwarded, false if a merge is
+	 * needed.
+	 */
+	boolean fastForward(String master, String generation) throws IOException {
+		final RevWalk walk = new RevWalk(repository);
+		try {
+			final RevCommit masterCommit = walk.parseCommit(repository.resolve(master));
+			final RevCommit generationCommit = walk.parseCommit(repository.resolve(generation));
+			if ( walk.isMergedInto(masterCommit, generationCommit) == false ) return false;
+			
+			if ( masterCommit.equals(generationCommit) == false ) {
+				final RefUpdate update = repository.updateRef(Constants.R_HEADS + master);
+				update.setNewObjectId(generationCommit);
+				update.setExpectedOldObjectId(masterCommit);
+				update.setRefLogMessage("merge " + generation + ": Fast-forward", false);
+				final RefUpdate.Result result = update.update(walk);
+				if ( result != RefUpdate.Result.FAST_FORWARD ) {
+					throw new IOException("Can't fast-forward '"+ master +"': " + result);
+				}
+			}
+			checkoutHead(master);
+			return true;
+			
+		} finally {
+			walk.release();
+		}
+	}
+	
+	/** Points the head to given branch, the working tree is left as is. */
+	private void checkoutHead(String branch) throws IOException {
+		final RefUpdate head = repository.updateRef(Constants.HEAD);
+		final RefUpdate.Result result = head.link(Constants.R_HEADS + branch);
+		if ( result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NEW && result != RefUpdate.Result.NO_CHANGE ) {
+			throw new IOException("Can't check out '"+ branch +"': " + result);
+		}
+	}
+	
+	/**
+	 * @return the paths changed on both sides by the last merge.
+	 */
+	List<ConflictingEntry> getConflictingEntries() {
+		return conflictingEntries;
+	}
+	
+	/**
+	 * <p>Updates the index and the working tree with the merge of the three
+	 * given commits.</p>
+	 */
+	private void update(RevCommit base, RevCommit master, RevCommit generation) throws IOException {
+		final List<DirCacheEntry> checkouts = new ArrayList<DirCacheEntry>();
+		final DirCache cache = repository.lockDirCache();
+		try {
+			final DirCacheBuilder builder = cache.builder();
+			final TreeWalk walk = new TreeWalk(repository);
+			try {
+				if ( base != null ) {
+					walk.addTree(base.getTree());
+				} else {
+					walk.addTree(new EmptyTreeIterator());
+				}
+				walk.addTree(master.getTree());
+				walk.addTree(generation.getTree());
+				walk.addTree(new DirCacheBuildIterator(builder));
+				
+				// index entries of folders skipped by the filter are kept
+				walk.setRecursive(true);
+				walk.setFilter(new KeptSubtreeFilter());
+			
+				while ( walk.next() ) {
+					if ( same(walk, BASE, USER) || same(walk, USER, GENERATION) ) {
+						// keeps generation version
+						keep(walk, builder);
+						
+					} else if ( same(walk, BASE, GENERATION) ) {
+						// takes user version
+						final File file = new File(repository.getWorkTree(), walk.getPathString());
+						if ( walk.getRawMode(USER) == 0 ) {
+							delete(file);
+						} else {
+							final DirCacheEntry entry = createEntry(walk, USER, DirCacheEntry.STAGE_0);
+							builder.add(entry);
+							checkouts.add(entry);
+						}
+						
+					} else {
+						// changed on both sides
+						final ConflictingEntry conflictingEntry = new ConflictingEntry(walk.getPathString());
+						conflictingEntry.base = addStage(walk, builder, BASE, DirCacheEntry.STAGE_1);
+						conflictingEntry.user = addStage(walk, builder, USER, DirCacheEntry.STAGE_2);
+						conflictingEntry.generation = addStage(walk, builder, GENERATION, DirCacheEntry.STAGE_3);
+						conflictingEntries.add(conflictingEntry);
+					}
+				}
+			} finally {
+				walk.release();
+			}
+			
+			// writes files once deletions are done (a file may replace a folder)
+			for ( DirCacheEntry entry : checkouts ) {
+				checkout(entry);
+			}
+			
+			builder.commit();
+		} finally {
+			cache.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Filters out folders not modified by user, they are kept from the 
+	 * index without visiting their files. The index contains the generation
+	 * folders since generation is checked out.</p>
+	 */
+	private class KeptSubtreeFilter extends TreeFilter {
+		
+		@Override
+		public boolean include(TreeWalk walk) {
+			if ( walk.isSubtree() == false ) return true;
+			if ( walk.getRawMode(INDEX) != walk.getRawMode(GENERATION) ) return true;
+			return ( same(walk, BASE, USER) || same(walk, USER, GENERATION) ) == false;
+		}
+		
+		@Override
+		public boolean shouldBeRecursive() {
+			return false;
+		}
+		
+		@Override
+		public TreeFilter clone() {
+			return this;
+		}
+	}
+	
+	/** Checks if both trees have the same entry (or both have none). */
+	private boolean same(TreeWalk walk, int a, int b) {
+		final int mode = walk.getRawMode(a);
+		return mode == walk.getRawMode(b) && ( mode == 0 || walk.idEqual(a, b) );
+	}
+	
+	/** Keeps the index entry for generation version. */
+	private void keep(TreeWalk walk, DirCacheBuilder builder) {
+		final DirCacheIterator index = walk.getTree(INDEX, DirCacheIterator.class);
+		if ( index != null && same(walk, INDEX, GENERATION) ) {
+			builder.add(index.getDirCacheEntry());
+		} else if ( walk.getRawMode(GENERATION) != 0 ) {
+			builder.add(createEntry(walk, GENERATION, DirCacheEntry.STAGE_0));
+		}
+	}
+	
+	/** Adds a conflict stage for given tree if it contains the path. */
+	private ObjectId addStage(TreeWalk walk, DirCacheBuilder builder, int tree, int stage) {
+		if ( walk.getRawMode(tree) == 0 ) return null;
+		final DirCacheEntry entry = createEntry(walk, tree, stage);
+		builder.add(entry);
+		return entry.getObjectId();
+	}
+	
+	private DirCacheEntry createEntry(TreeWalk walk, int tree, int stage) {
+		final DirCacheEntry entry = new DirCacheEntry(walk.getRawPath(), stage);
+		entry.setFileMode(FileMode.fromBits(walk.getRawMode(tree)));
+		entry.setObjectId(walk.getObjectId(tree));
+		return entry;
+	}
+	
+	/** 
+	 * Writes the blob of given entry in the working tree, symbolic links 
+	 * are written as files containing their target if they aren't 
+	 * supported.
+	 */
+	private void checkout(DirCacheEntry entry) throws IOException {
+		final File file = new File(repository.getWorkTree(), entry.getPathString());
+		if ( entry.getFileMode() == FileMode.SYMLINK ) {
+			final Path link = file.toPath();
+			final byte[] target = repository.open(entry.getObjectId(), Constants.OBJ_BLOB).getCachedBytes();
+			FileUtil.delete(file);
+			Files.createDirectories(link.getParent());
+			if ( FileUtil.createSymbolicLink(link, Paths.get(RawParseUtils.decode(target))) ) {
+				entry.setLength(target.length);
+				entry.setLastModified(Files.getLastModifiedTime(link, LinkOption.NOFOLLOW_LINKS).toMillis());
+				return;
+			}
+		}
+		
+		final AtomicOutputStream stream = writer.open(file);
+		try {
+			repository.open(entry.getObjectId(), Constants.OBJ_BLOB).copyTo(stream);
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+		
+		entry.setLength(file.length());
+		entry.setLastModified(file.lastModified());
+	}
+	
+	/** Deletes file and its parent folders if they become empty. */
+	private void delete(File file) {
+		FileUtil.delete(file);
+		
+		final File workTree = repository.getWorkTree();
+		File parent = file.getParentFile();
+		while ( parent != null && parent.equals(workTree) == false ) {
+			final String[] children = parent.list();
+			if ( children == null || children.length > 0 ) break;
+			parent.delete();
+			parent = parent.getParentFile();
+		}
+	}
+}
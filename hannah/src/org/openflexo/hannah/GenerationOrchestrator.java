@@ -0,0 +1,453 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openflexo.hannah.GenerationService.GenerationTask;
+
+/**
+ * <p>The {@link GenerationOrchestrator} runs the generation cycles of many
+ * {@link IterativeFileGenerator}s (one per output folder) at the same time 
+ * on a bounded thread pool. The wall time of a run then approaches the 
+ * time of the slowest output instead of the sum of all of them.</p>
+ * 
+ * <p>Each run goes through phases for all generators: user modifications 
+ * are collected, the {@link ModificationHandler} is called once with the
+ * modifications of all outputs, files are generated and merged, then the
+ * {@link ConflictHandler} is called once with the conflicting files of all 
+ * outputs. {@link #getGenerator(Modification)} and 
+ * {@link #getGenerator(ConflictingFile)} tell which output they belong 
+ * to.</p>
+ * 
+ * <p>Repository work (diffs, cleaning, commits, merges) is limited to a 
+ * number of generators at a time to avoid saturating the storage device,
+ * generation tasks aren't limited. Orchestrators writing to the same 
+ * device can share their permits (see {@link #getIoPermits()}).</p>
+ * 
+ * <p>A generator which fails, or all the generators when a handler fails,
+ * abandons its cycle: its output folder goes back to the last merged 
+ * generation and the next run starts from there.</p>
+ * 
+ * <p>It will look like this:
+ * <pre><code>
+ * GenerationOrchestrator orchestrator = new GenerationOrchestrator(8, 2);
+ * orchestrator.add(generator1, task1);
+ * orchestrator.add(generator2, task2);
+ * orchestrator.run(ModificationHandler.accept, ConflictHandler.user);
+ * orchestrator.close();
+ * </code></pre>
+ * </p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class GenerationOrchestrator implements Closeable {
+
+	private final ExecutorService executor;
+	
+	/** True if the executor was created by the orchestrator. */
+	private final boolean ownExecutor;
+	
+	/** Permits for repository work. */
+	private final Semaphore io;
+	
+	private final List<Output> outputs = new ArrayList<Output>();
+	
+	/** Generator of each modification and conflicting file of last run. */
+	private final Map<Object, IterativeFileGenerator> owners = new IdentityHashMap<Object, IterativeFileGenerator>();
+	
+	/**
+	 * <p>Creates an orchestrator with its own thread pool, released by 
+	 * {@link #close()}.</p>
+	 * @param threads number of threads.
+	 * @param ioPermits number of generators doing repository work at the
+	 * same time.
+	 */
+	public GenerationOrchestrator(int threads, int ioPermits) {
+		this(Executors.newFixedThreadPool(threads, new OrchestratorThreadFactory()), true, createPermits(ioPermits));
+	}
+	
+	/**
+	 * <p>Creates an orchestrator with its own thread pool, released by 
+	 * {@link #close()}, sharing permits for repository work with other
+	 * orchestrators.</p>
+	 * @param threads number of threads.
+	 * @param io permits for repository work, it should be fair.
+	 */
+	public GenerationOrchestrator(int threads, Semaphore io) {
+		this(Executors.newFixedThreadPool(threads, new OrchestratorThreadFactory()), true, io);
+	}
+	
+	/**
+	 * <p>Creates an orchestrator using a shared executor, it isn't shut 
+	 * down by {@link #close()}. The executor must not run tasks in the 
+	 * calling thread.</p>
+	 * @param executor the executor.
+	 * @param ioPermits number of generators doing repository work at the
+	 * same time.
+	 */
+	public GenerationOrchestrator(ExecutorService executor, int ioPermits) {
+		this(executor, false, createPermits(ioPermits));
+	}
+	
+	/**
+	 * <p>Creates an orchestrator using a shared executor and sharing 
+	 * permits for repository work with other orchestrators.</p>
+	 * @param executor the executor, it isn't shut down by {@link #close()}.
+	 * @param io permits for repository work, it should be fair.
+	 */
+	public GenerationOrchestrator(ExecutorService executor, Semaphore io) {
+		this(executor, false, io);
+	}
+	
+	private GenerationOrchestrator(ExecutorService executor, boolean ownExecutor, Semaphore io) {
+		if ( io == null ) {
+			throw new NullPointerException("Permits are needed.");
+		}
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+		this.io = io;
+	}
+	
+	private static Semaphore createPermits(int ioPermits) {
+		if ( ioPermits <= 0 ) {
+			throw new IllegalArgumentException("At least one permit is needed.");
+		}
+		return new Semaphore(ioPermits, true);
+	}
+	
+	/**
+	 * @return the permits for repository work, they can be given to other
+	 * orchestrators to limit repository work for all of them.
+	 */
+	public Semaphore getIoPermits() {
+		return io;
+	}
+	
+	/**
+	 * <p>Adds a generator to run for the whole output.</p>
+	 */
+	public synchronized void add(IterativeFileGenerator generator, GenerationTask task) {
+		add(generator, task, null);
+	}
+	
+	/**
+	 * <p>Adds a generator to run.</p>
+	 * @param generator the generator.
+	 * @param task generates the files of the generator.
+	 * @param scope path prefixes to generate, null for the whole output.
+	 */
+	public synchronized void add(IterativeFileGenerator generator, GenerationTask task, Collection<String> scope) {
+		for ( Output output : outputs ) {
+			if ( output.generator == generator ) {
+				throw new IllegalArgumentException("Generator for '"+ generator.getOutputFolder() +"' already added.");
+			}
+		}
+		outputs.add(new Output(generator, task, scope));
+	}
+	
+	/**
+	 * @return the generator the modification belongs to, null if it doesn't 
+	 * come from the last run.
+	 */
+	public synchronized IterativeFileGenerator getGenerator(Modification modification) {
+		return owners.get(modification);
+	}
+	
+	/**
+	 * @return the generator the conflicting file belongs to, null if it 
+	 * doesn't come from the last run.
+	 */
+	public synchronized IterativeFileGenerator getGenerator(ConflictingFile conflictingFile) {
+		return owners.get(conflictingFile);
+	}
+	
+	/**
+	 * <p>Runs one generation cycle for all the generators. A generator which
+	 * fails abandons its cycle and is left out of the following phases, the
+	 * other ones complete their cycle. If a handler fails, all generators 
+	 * abandon their cycle.</p>
+	 * @param modificationHandler called once with the modifications of all 
+	 * outputs (if any).
+	 * @param conflictHandler called once with the conflicting files of all
+	 * outputs (if any).
+	 * @throws IOException if at least one generator failed, failures are 
+	 * given as suppressed exceptions.
+	 */
+	public synchronized void run(ModificationHandler modificationHandler, ConflictHandler conflictHandler) throws IOException {
+		owners.clear();
+		for ( Output output : outputs ) {
+			output.reset();
+		}
+		
+		// collects modifications of all outputs
+		runPhase(new Phase() {
+			@Override
+			public void run(Output output) throws Exception {
+				io.acquire();
+				try {
+					output.modifications = output.generator.collectModifications(output.scope);
+				} finally {
+					io.release();
+				}
+			}
+		});
+		
+		final List<Modification> modifications = new ArrayList<Modification>();
+		for ( Output output : outputs ) {
+			if ( output.error != null ) continue;
+			for ( Modification modification : output.modifications ) {
+				owners.put(modification, output.generator);
+				modifications.add(modification);
+			}
+		}
+		if ( modifications.isEmpty() == false && modificationHandler != null ) {
+			try {
+				modificationHandler.modifications(modifications);
+			} catch (Throwable e) {
+				abortAll(e);
+				throw e;
+			}
+		}
+		
+		// generates and merges
+		runPhase(new Phase() {
+			@Override
+			public void run(Output output) throws Exception {
+				io.acquire();
+				try {
+					output.generator.startGeneration(output.modifications);
+				} finally {
+					io.release();
+				}
+				
+				output.task.generate(output.generator, output.scope);
+				
+				io.acquire();
+				try {
+					output.conflictingFiles = output.generator.mergeGeneration();
+				} finally {
+					io.release();
+				}
+			}
+		});
+		
+		final List<ConflictingFile> conflictingFiles = new ArrayList<ConflictingFile>();
+		for ( Output output : outputs ) {
+			if ( output.error != null ) continue;
+			for ( ConflictingFile conflictingFile : output.conflictingFiles ) {
+				owners.put(conflictingFile, output.generator);
+				conflictingFiles.add(conflictingFile);
+			}
+		}
+		if ( conflictingFiles.isEmpty() == false ) {
+			try {
+				conflictHandler.conflicts(conflictingFiles);
+			} catch (Throwable e) {
+				abortAll(e);
+				throw e;
+			}
+		}
+		
+		// writes resolutions and commits merges
+		runPhase(new Phase() {
+			@Override
+			public void run(Output output) throws Exception {
+				io.acquire();
+				try {
+					output.generator.completeMerge();
+				} finally {
+					io.release();
+				}
+			}
+		});
+		
+		IOException failure = null;
+		for ( Output output : outputs ) {
+			if ( output.error == null ) continue;
+			if ( failure == null ) {
+				failure = new IOException("Generation failed for '"+ output.generator.getOutputFolder() +"'.", output.error);
+			} else {
+				failure.addSuppressed(output.error);
+			}
+		}
+		if ( failure != null ) throw failure;
+	}
+	
+	/**
+	 * <p>Runs a phase for all outputs which didn't fail and waits for all of
+	 * them. An output which fails abandons its cycle in its thread. When 
+	 * interrupted, phases not started yet are cancelled, the running ones 
+	 * are waited for, then all cycles are abandoned.</p>
+	 */
+	private void runPhase(final Phase phase) throws IOException {
+		final List<Future<?>> futures = new ArrayList<Future<?>>(outputs.size());
+		for ( final Output output : outputs ) {
+			if ( output.error != null ) {
+				futures.add(null);
+				continue;
+			}
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						phase.run(output);
+					} catch (Throwable e) {
+						abort(output, e);
+						throw e;
+					}
+					return null;
+				}
+			}));
+		}
+		
+		boolean interrupted = false;
+		for ( int i=0; i<futures.size(); i++ ) {
+			final Future<?> future = futures.get(i);
+			if ( future == null ) continue;
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				outputs.get(i).error = e.getCause();
+			} catch (CancellationException e) {
+				// never started, abandoned below
+			} catch (InterruptedException e) {
+				// running cycles can't be abandoned while they're running
+				interrupted = true;
+				for ( Future<?> other : futures ) {
+					if ( other != null ) other.cancel(false);
+				}
+				i -= 1;
+			}
+		}
+		
+		if ( interrupted ) {
+			final InterruptedIOException failure = new InterruptedIOException("Generation interrupted.");
+			abortAll(failure);
+			Thread.currentThread().interrupt();
+			throw failure;
+		}
+	}
+	
+	/**
+	 * <p>Abandons the cycle of all outputs which didn't fail.</p>
+	 * @param failure the cause, failures to abandon are added to it.
+	 */
+	private void abortAll(Throwable failure) {
+		for ( Output output : outputs ) {
+			if ( output.error == null ) {
+				abort(output, failure);
+			}
+		}
+	}
+	
+	/**
+	 * <p>Abandons the cycle of an output, the output folder goes back to the 
+	 * last merged generation.</p>
+	 * @param failure the cause, a failure to abandon is added to it.
+	 */
+	private static void abort(Output output, Throwable failure) {
+		try {
+			output.generator.abortCycle();
+		} catch (Exception e) {
+			failure.addSuppressed(e);
+		}
+	}
+	
+	/**
+	 * <p>Shuts down the thread pool if it was created by the orchestrator.
+	 * </p>
+	 */
+	@Override
+	public void close() {
+		if ( ownExecutor ) {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * <p>Work done for one output during a phase.</p>
+	 */
+	private interface Phase {
+		
+		void run(Output output) throws Exception;
+	}
+	
+	/**
+	 * <p>A generator with its task and the state of the current run.</p>
+	 */
+	private static class Output {
+		
+		final IterativeFileGenerator generator;
+		
+		final GenerationTask task;
+		
+		final Collection<String> scope;
+		
+		List<Modification> modifications;
+		
+		List<ConflictingFile> conflictingFiles;
+		
+		/** Failure of the current run, null if none. */
+		Throwable error;
+		
+		Output(IterativeFileGenerator generator, GenerationTask task, Collection<String> scope) {
+			this.generator = generator;
+			this.task = task;
+			this.scope = scope;
+		}
+		
+		void reset() {
+			modifications = null;
+			conflictingFiles = null;
+			error = null;
+		}
+	}
+	
+	/**
+	 * <p>Creates daemon threads, the pool doesn't prevent the application to
+	 * exit.</p>
+	 */
+	private static class OrchestratorThreadFactory implements ThreadFactory {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "Hannah orchestrator " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
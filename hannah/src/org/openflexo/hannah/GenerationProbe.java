@@ -0,0 +1,87 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+/**
+ * <p>A {@link GenerationProbe} is notified of the phases of the generation
+ * cycles and of large file operations, to line up profiling samples (for 
+ * instance Java Flight Recorder events) with what Hannah is doing.</p>
+ * 
+ * <p>Notifications are made in the thread running the phase, each started
+ * phase is ended in the same thread unless the cycle fails. A phase may 
+ * be notified more than once per cycle: {@link Phase#RESOLVE} is ended 
+ * while conflict handlers run (they may run in another thread) and 
+ * {@link Phase#MERGE} is notified again for the commit of a merge with 
+ * conflicts. When no probe is set, the {@link IterativeFileGenerator} 
+ * doesn't measure anything.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public interface GenerationProbe {
+
+	/**
+	 * <p>Phases of a generation cycle.</p>
+	 */
+	public enum Phase {
+		/** Search of user modifications in start. */
+		DIFF,
+		/** Commit of user modifications and cleaning of the output in start. */
+		CLEANUP,
+		/** Between start and end, files are generated. */
+		WRITE,
+		/** Search of generated files to commit in end. */
+		STATUS,
+		/** Commit of the generation. */
+		COMMIT,
+		/** Merge of the generation in master and commit of the merge. */
+		MERGE,
+		/** Merge of conflicting files contents and writing of resolutions,
+		 * without the time spent in conflict handlers. */
+		RESOLVE
+	}
+	
+	/**
+	 * <p>A generation cycle starts.</p>
+	 */
+	void cycleStarted(IterativeFileGenerator generator);
+	
+	/**
+	 * <p>A generation cycle ended.</p>
+	 */
+	void cycleEnded(IterativeFileGenerator generator);
+	
+	void phaseStarted(IterativeFileGenerator generator, Phase phase);
+	
+	void phaseEnded(IterativeFileGenerator generator, Phase phase);
+	
+	/**
+	 * <p>A file above the probe threshold was generated.</p>
+	 * @param path relative path of the file.
+	 * @param size file size in bytes (characters for text contents).
+	 * @param duration write time in nanoseconds.
+	 */
+	void fileWritten(IterativeFileGenerator generator, String path, long size, long duration);
+	
+	/**
+	 * <p>A file above the probe threshold was merged.</p>
+	 * @param path relative path of the file.
+	 * @param size size of the largest version in bytes.
+	 * @param duration merge time in nanoseconds.
+	 */
+	void fileMerged(IterativeFileGenerator generator, String path, long size, long duration);
+}
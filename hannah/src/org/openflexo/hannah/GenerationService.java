@@ -0,0 +1,324 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * <p>The {@link GenerationService} runs generation cycles of an 
+ * {@link IterativeFileGenerator} in the background. It's meant for long
+ * running processes (like an IDE) which regenerate often.</p>
+ * 
+ * <p>The output folder is watched to know which paths the user modified,
+ * each cycle only searches user modifications in these paths instead of the
+ * whole output. If the watcher loses events, the next cycle searches the 
+ * whole output. Generation requests made while a cycle is running or 
+ * waiting are coalesced in one cycle.</p>
+ * 
+ * <p>It will look like this:
+ * <pre><code>
+ * GenerationService service = new GenerationService(generator, task, ModificationHandler.accept, ConflictHandler.user);
+ * service.start();
+ * ...
+ * service.requestGeneration(Collections.singleton("package1"));
+ * ...
+ * service.close();
+ * </code></pre>
+ * </p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class GenerationService implements Closeable {
+
+	/**
+	 * <p>Generates the files of one cycle.</p>
+	 */
+	public interface GenerationTask {
+		
+		/**
+		 * <p>Generates files between start and end of a cycle.</p>
+		 * @param generator the generator to use.
+		 * @param scope path prefixes to generate, null for the whole output.
+		 */
+		void generate(IterativeFileGenerator generator, Collection<String> scope) throws Exception;
+	}
+	
+	/**
+	 * <p>Time to wait after a request for others to coalesce, it also lets
+	 * the last user modifications be notified.</p>
+	 */
+	public final static long DEFAULT_COALESCE_DELAY = 100;
+	
+	private final IterativeFileGenerator generator;
+	
+	private final GenerationTask task;
+	
+	private final ModificationHandler modificationHandler;
+	
+	private final ConflictHandler conflictHandler;
+	
+	private long coalesceDelay = DEFAULT_COALESCE_DELAY;
+	
+	/** Pending scope, empty if no request, null for the whole output. */
+	private Set<String> pending = new LinkedHashSet<String>();
+	
+	/** True if a request is pending. */
+	private boolean requested = false;
+	
+	/** True while a cycle runs. */
+	private boolean running = false;
+	
+	/** Number of completed cycles. */
+	private long cycles = 0;
+	
+	/** Paths given to the last cycle, null for the whole output. */
+	private Collection<String> lastModifiedPaths;
+	
+	/** Last cycle failure, null if it succeeded. */
+	private Exception lastError;
+	
+	private boolean closed = false;
+	
+	private OutputWatcher watcher;
+	
+	private GeneratorSession session;
+	
+	private Thread watcherThread;
+	
+	private Thread workerThread;
+	
+	public GenerationService(IterativeFileGenerator generator, GenerationTask task, ModificationHandler modificationHandler, ConflictHandler conflictHandler) {
+		this.generator = generator;
+		this.task = task;
+		this.modificationHandler = modificationHandler;
+		this.conflictHandler = conflictHandler;
+	}
+	
+	public long getCoalesceDelay() {
+		return coalesceDelay;
+	}
+	
+	/**
+	 * <p>Sets the time to wait after a request before running the cycle,
+	 * {@link #DEFAULT_COALESCE_DELAY} by default.</p>
+	 * @param coalesceDelay delay in milliseconds.
+	 */
+	public void setCoalesceDelay(long coalesceDelay) {
+		this.coalesceDelay = coalesceDelay;
+	}
+	
+	/**
+	 * <p>Starts watching the output folder and the thread running the 
+	 * cycles. The first cycle searches user modifications in the whole 
+	 * output.</p>
+	 */
+	public synchronized void start() throws IOException {
+		if ( workerThread != null ) {
+			throw new IllegalStateException("Service already started.");
+		}
+		
+		final File output = generator.getOutputFolder();
+		if ( output.isDirectory() == false && output.mkdirs() == false ) {
+			throw new IOException("Can't create folder '"+ output +"'.");
+		}
+		watcher = new OutputWatcher(output.toPath(), IterativeFileGenerator.HANNAH_REPOSITORY_FILENAME);
+		session = generator.openSession();
+		
+		watcherThread = new Thread(watcher, "Hannah watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+		
+		workerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		}, "Hannah generation");
+		workerThread.setDaemon(true);
+		workerThread.start();
+	}
+	
+	/**
+	 * <p>Requests a cycle for the whole output.</p>
+	 */
+	public void requestGeneration() {
+		requestGeneration(null);
+	}
+	
+	/**
+	 * <p>Requests a cycle for given path prefixes. Pending requests are 
+	 * merged: their prefixes are joined, a request for the whole output 
+	 * wins.</p>
+	 * @param scope path prefixes, null for the whole output.
+	 */
+	public synchronized void requestGeneration(Collection<String> scope) {
+		if ( closed ) throw new IllegalStateException("Service is closed.");
+		
+		if ( requested == false ) {
+			pending = new LinkedHashSet<String>();
+		}
+		if ( pending != null ) {
+			if ( scope == null || scope.isEmpty() ) {
+				pending = null;
+			} else {
+				pending.addAll(scope);
+			}
+		}
+		requested = true;
+		notifyAll();
+	}
+	
+	/**
+	 * <p>Waits until no cycle is pending or running.</p>
+	 * @param timeout maximum time to wait in milliseconds.
+	 * @return true if the service is idle.
+	 */
+	public synchronized boolean awaitIdle(long timeout) throws InterruptedException {
+		final long end = System.currentTimeMillis() + timeout;
+		while ( requested || running ) {
+			final long remaining = end - System.currentTimeMillis();
+			if ( remaining <= 0 ) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of completed cycles (failed or not).
+	 */
+	public synchronized long getCycles() {
+		return cycles;
+	}
+	
+	/**
+	 * @return the paths searched for user modifications by the last cycle,
+	 * null if it searched the whole output.
+	 */
+	synchronized Collection<String> getLastModifiedPaths() {
+		return lastModifiedPaths;
+	}
+	
+	/**
+	 * @return the exception which made last cycle fail, null if it 
+	 * succeeded.
+	 */
+	public synchronized Exception getLastError() {
+		return lastError;
+	}
+	
+	/** Worker loop, runs one cycle for all coalesced requests. */
+	private void work() {
+		try {
+			while ( true ) {
+				final Collection<String> scope;
+				synchronized (this) {
+					while ( requested == false && closed == false ) {
+						wait();
+					}
+					if ( closed ) return;
+				}
+				
+				// lets other requests (and user modifications) arrive
+				Thread.sleep(coalesceDelay);
+				
+				synchronized (this) {
+					if ( closed ) return;
+					scope = pending == null ? null : new ArrayList<String>(pending);
+					requested = false;
+					running = true;
+				}
+				
+				Exception error = null;
+				try {
+					cycle(scope);
+				} catch (Exception e) {
+					// modified paths of the failed cycle are lost
+					watcher.invalidate();
+					error = e;
+				}
+				
+				synchronized (this) {
+					running = false;
+					cycles += 1;
+					lastError = error;
+					notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stops the service
+		}
+	}
+	
+	private void cycle(Collection<String> scope) throws Exception {
+		final Collection<String> modified = watcher.drain();
+		synchronized (this) {
+			lastModifiedPaths = modified;
+		}
+		generator.setModifiedPaths(modified);
+		
+		try {
+			generator.start(modificationHandler, scope);
+			task.generate(generator, scope);
+			generator.end(conflictHandler);
+		} catch (Exception e) {
+			// the output goes back to the last merge, a half written 
+			// generation isn't taken as user modifications by next cycle
+			try {
+				generator.abortCycle();
+			} catch (Exception abort) {
+				e.addSuppressed(abort);
+			}
+			throw e;
+		}
+		
+		// the generator's own writes aren't user modifications
+		watcher.forget(generator.getWrittenPaths());
+	}
+	
+	/**
+	 * <p>Stops the service, waits for the running cycle and closes the 
+	 * session. Pending requests are dropped.</p>
+	 */
+	@Override
+	public void close() throws IOException {
+		final Thread worker;
+		synchronized (this) {
+			if ( closed ) return;
+			closed = true;
+			notifyAll();
+			worker = workerThread;
+		}
+		
+		try {
+			if ( worker != null ) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if ( watcher != null ) watcher.close();
+			if ( session != null ) session.close();
+		}
+	}
+}
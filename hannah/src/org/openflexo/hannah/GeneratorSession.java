@@ -0,0 +1,100 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.Closeable;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.WindowCache;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+
+/**
+ * <p>A {@link GeneratorSession} keeps the repository of an 
+ * {@link IterativeFileGenerator} open across generation cycles. Without
+ * session, the repository is opened at each start and closed at each end.
+ * With a session, references, configuration and the object database state 
+ * stay warm from one cycle to the next, which matters when generating 
+ * every few seconds.</p>
+ * 
+ * <p>It will look like this:
+ * <pre><code>
+ * GeneratorSession session = generator.openSession();
+ * try {
+ *     while ( ... ) {
+ *         generator.start(ModificationHandler.accept);
+ *         ...
+ *         generator.end(ConflictHandler.user);
+ *     }
+ * } finally {
+ *     session.close();
+ * }
+ * </code></pre>
+ * </p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class GeneratorSession implements Closeable {
+
+	private final IterativeFileGenerator generator;
+	
+	/** The repository, null until first start. */
+	private Repository repository;
+	
+	GeneratorSession(IterativeFileGenerator generator) {
+		this.generator = generator;
+	}
+	
+	/**
+	 * @return the generator this session belongs to.
+	 */
+	public IterativeFileGenerator getGenerator() {
+		return generator;
+	}
+	
+	Repository getRepository() {
+		return repository;
+	}
+	
+	void setRepository(Repository repository) {
+		this.repository = repository;
+	}
+	
+	/**
+	 * <p>Configures the caches of pack files: memory used for pack windows,
+	 * delta bases, the number of open pack files and the size above which
+	 * objects are streamed instead of loaded. These caches are shared by all
+	 * repositories of the virtual machine.</p>
+	 * @param config the cache budgets.
+	 */
+	public static void configureCaches(WindowCacheConfig config) {
+		WindowCache.reconfigure(config);
+	}
+	
+	/**
+	 * <p>Closes the repository. The generator opens its repository at each
+	 * cycle again.</p>
+	 */
+	@Override
+	public void close() {
+		generator.closeSession(this);
+		if ( repository != null ) {
+			repository.close();
+			repository = null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+
+/**
+ * <p>The {@link InputKeys} records, for each generated path, the key of 
+ * the inputs used to generate it. Keys are saved in the repository next to
+ * the generation commit they belong to, they're only used if the 
+ * generation branch still points to this commit.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class InputKeys {
+
+	/** File name in the repository folder. */
+	private final static String FILENAME = "hannah-inputs";
+	
+	/** Key for the generation commit id (paths are never empty). */
+	private final static String COMMIT_KEY = "";
+	
+	private final File file;
+	
+	/** Keys of the last generation. */
+	private final Map<String, String> previous = new HashMap<String, String>();
+	
+	/** Keys of the current generation. */
+	private final Map<String, String> current = new HashMap<String, String>();
+	
+	InputKeys(File gitFolder) {
+		this.file = new File(gitFolder, FILENAME);
+	}
+	
+	/**
+	 * <p>Loads keys saved for given generation commit.</p>
+	 * @param generation current generation commit, null if none.
+	 */
+	void load(ObjectId generation) throws IOException {
+		previous.clear();
+		current.clear();
+		if ( generation == null || file.exists() == false ) return;
+		
+		final Properties properties = new Properties();
+		final InputStream stream = new FileInputStream(file);
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+		
+		// keys are obsolete if generation branch moved
+		if ( generation.name().equals(properties.getProperty(COMMIT_KEY)) == false ) return;
+		
+		for ( final String path : properties.stringPropertyNames() ) {
+			if ( path.equals(COMMIT_KEY) ) continue;
+			previous.put(path, properties.getProperty(path));
+		}
+	}
+	
+	/** Checks if path was generated from given key last generation. */
+	boolean matches(String path, String key) {
+		return key != null && key.equals(previous.get(path));
+	}
+	
+	/**
+	 * <p>Keeps keys of last generation for paths outside of given scope,
+	 * they're not generated in a scoped cycle.</p>
+	 */
+	void keepOutside(Collection<String> scope) {
+		for ( final Map.Entry<String, String> entry : previous.entrySet() ) {
+			if ( IterativeFileGenerator.isInScope(scope, entry.getKey()) == false ) {
+				current.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+	
+	void put(String path, String key) {
+		current.put(path, key);
+	}
+	
+	void remove(String path) {
+		current.remove(path);
+	}
+	
+	/**
+	 * <p>Saves keys of the current generation.</p>
+	 * @param generation the generation commit the keys belong to.
+	 * @param writer writer for the keys file.
+	 */
+	void save(ObjectId generation, OutputWriter writer) throws IOException {
+		final Properties properties = new Properties();
+		properties.putAll(current);
+		properties.setProperty(COMMIT_KEY, generation.name());
+		
+		final AtomicOutputStream stream = writer.open(file);
+		try {
+			properties.store(stream, "Hannah input keys");
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+	}
+}
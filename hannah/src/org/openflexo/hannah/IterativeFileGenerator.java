@@ -18,32 +18,62 @@
 package org.openflexo.hannah;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.DiffCommand;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.MergeResult.MergeStatus;
-import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.ResetCommand.ResetType;
 import org.eclipse.jgit.api.RmCommand;
-import org.eclipse.jgit.api.Status;
 import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffAlgorithm;
+import org.eclipse.jgit.diff.DiffAlgorithm.SupportedAlgorithm;
 import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.Edit;
 import org.eclipse.jgit.diff.RawText;
 import org.eclipse.jgit.diff.RawTextComparator;
-import org.eclipse.jgit.dircache.DirCache;
-import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.diff.SequenceComparator;
+import org.eclipse.jgit.dircache.DirCacheCheckout;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.IndexDiff;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.ObjectLoader;
-import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.merge.MergeAlgorithm;
 import org.eclipse.jgit.merge.MergeResult;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.storage.file.GC;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.openflexo.hannah.GenerationProbe.Phase;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+import org.openflexo.hannah.OutputWriter.Durability;
 
 /**
  * <p>The {@link IterativeFileGenerator} allows to generate files using 
@@ -72,6 +102,28 @@ import org.eclipse.jgit.merge.MergeResult;
  */
 public class IterativeFileGenerator {
 
+	/**
+	 * <p>Archive formats for exports.</p>
+	 */
+	public enum ArchiveFormat {
+		/** Zip archive, files are deflated. */
+		ZIP,
+		/** Uncompressed tar archive (ustar). */
+		TAR
+	}
+
+	/**
+	 * <p>Versions of a file that can be read from the repository.</p>
+	 */
+	public enum Version {
+		/** Last generated version. */
+		GENERATED,
+		/** Last merged version, with user modifications. */
+		MERGED,
+		/** Common ancestor of the last generated and merged versions. */
+		BASE
+	}
+
 	/**
 	 * Git repository folder name.
 	 */
@@ -80,7 +132,7 @@ public class IterativeFileGenerator {
 	/**
 	 * Hannah repository folder name.
 	 */
-	private final static String HANNAH_REPOSITORY_FILENAME = ".hannah";
+	final static String HANNAH_REPOSITORY_FILENAME = ".hannah";
 	
 	/**
 	 * A dummy file name used to force the creation of the master branch.
@@ -88,19 +140,56 @@ public class IterativeFileGenerator {
 	private final static String DUMMY_FILENAME = ".dummy";
 	
 	/**
-	 * The generation branch name.
+	 * The generation branch name, it contains the generated files.
+	 */
+	public final static String GENERATION = "generation";
+	
+	/**
+	 * The master branch name, it contains the merge of generated files and
+	 * user modifications.
+	 */
+	public final static String MASTER = "master";
+	
+	/**
+	 * Default size above which blobs are merged from memory-mapped files.
+	 */
+	public final static long DEFAULT_BIG_FILE_THRESHOLD = 50 * 1024 * 1024;
+	
+	/**
+	 * Default number of merges after which an unused resolution is forgotten.
+	 */
+	public final static int DEFAULT_RESOLUTION_MAX_AGE = 50;
+	
+	/**
+	 * Default number of packs above which packs are consolidated.
 	 */
-	private final static String GENERATION = "generation";
+	public final static int DEFAULT_MAX_PACKS = 20;
 	
 	/**
-	 * The master branch name.
+	 * Default size of the cache for read contents, in characters.
 	 */
-	private final static String MASTER = "master";
+	public final static long DEFAULT_BLOB_CACHE_SIZE = 8 * 1024 * 1024;
+	
+	/**
+	 * Runs merges with a time budget, idle threads are released after a
+	 * minute and they don't prevent the application to exit.
+	 */
+	private final static ExecutorService MERGE_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "Hannah merge " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	/**
 	 * When cleaning the output folder before generating, this list of file name is ignored.
 	 */
-	private final List<String> NOT_DELETED_FILES = Arrays.asList(GIT_REPOSITORY_FILENAME, DUMMY_FILENAME);
+	private final List<String> NOT_DELETED_FILES = Arrays.asList(HANNAH_REPOSITORY_FILENAME, DUMMY_FILENAME);
 	
 	/** 
 	 * <p>Base output folder for generator. All filename given for generation
@@ -123,6 +212,125 @@ public class IterativeFileGenerator {
 	 */
 	private Git git;
 	
+	/**
+	 * Size above which blobs are merged from memory-mapped files.
+	 */
+	private long bigFileThreshold = DEFAULT_BIG_FILE_THRESHOLD;
+	
+	/**
+	 * User code regions carried over before merging, null if not used.
+	 */
+	private ProtectedRegions protectedRegions;
+	
+	/**
+	 * Diff algorithm used to merge conflicting files.
+	 */
+	private SupportedAlgorithm diffAlgorithm = SupportedAlgorithm.HISTOGRAM;
+	
+	/**
+	 * Line comparator used to merge conflicting files.
+	 */
+	private RawTextComparator comparator = RawTextComparator.DEFAULT;
+	
+	/**
+	 * Maximum time in milliseconds to merge one file, 0 for no limit.
+	 */
+	private long mergeTimeBudget = 0;
+	
+	/**
+	 * Session keeping the repository open, null if none.
+	 */
+	private GeneratorSession session;
+	
+	/**
+	 * Path prefixes of the current cycle, null if the whole output is 
+	 * generated.
+	 */
+	private List<String> scope;
+	
+	/**
+	 * Paths modified by user since last generation if they're known, null
+	 * to search modifications in the whole output.
+	 */
+	private Collection<String> modifiedPaths;
+	
+	/**
+	 * Input keys of generated files.
+	 */
+	private InputKeys inputKeys;
+	
+	/**
+	 * Last generation commit when the cycle started, null if none.
+	 */
+	private ObjectId lastGeneration;
+	
+	/**
+	 * Object database shared with other generators, null if not used.
+	 */
+	private File sharedObjectStore;
+	
+	/**
+	 * True if generation and user modifications are committed in packs.
+	 */
+	private boolean packedCommits = false;
+	
+	/**
+	 * Number of packs above which packs are consolidated.
+	 */
+	private int maxPacks = DEFAULT_MAX_PACKS;
+	
+	/**
+	 * True if conflict resolutions are remembered across generations.
+	 */
+	private boolean rememberResolutions = false;
+	
+	/**
+	 * Number of merges after which an unused resolution is forgotten.
+	 */
+	private int resolutionMaxAge = DEFAULT_RESOLUTION_MAX_AGE;
+	
+	/**
+	 * Writer for generated and merged files.
+	 */
+	private OutputWriter output = new OutputWriter(Durability.NONE);
+	
+	/**
+	 * Statistics for the last merge.
+	 */
+	private MergeStatistics statistics = new MergeStatistics();
+	
+	/**
+	 * Probe notified of phases and file operations, null if none.
+	 */
+	private GenerationProbe probe;
+	
+	/**
+	 * Size above which file operations are notified to the probe.
+	 */
+	private long probeFileThreshold = Long.MAX_VALUE;
+	
+	/**
+	 * Merge waiting for conflicts resolution, null if none.
+	 */
+	private PendingMerge pendingMerge;
+	
+	/**
+	 * True once the output folder has been modified for the generation of
+	 * the current cycle.
+	 */
+	private boolean generationStarted;
+	
+	/**
+	 * Cache for contents read with {@link #getContents(String, Version)}.
+	 */
+	private BlobCache blobCache = new BlobCache(DEFAULT_BLOB_CACHE_SIZE);
+	
+	/**
+	 * Folder where merged files are materialized after each cycle, null if
+	 * not used.
+	 */
+	private File snapshotFolder;
+	
 	public IterativeFileGenerator(File outputFolder) {
 		assert outputFolder == null;
 		
@@ -138,6 +346,327 @@ public class IterativeFileGenerator {
 		return outputFolder;
 	}
 	
+	/**
+	 * @return the size above which blobs are merged from memory-mapped files.
+	 */
+	public long getBigFileThreshold() {
+		return bigFileThreshold;
+	}
+	
+	/**
+	 * <p>Sets the size above which conflicting blobs aren't loaded in the 
+	 * heap. When one of the base, user or generation version of a 
+	 * conflicting file is bigger, the three versions are streamed to 
+	 * temporary files and merged from memory-mapped buffers. Files bigger 
+	 * than 2GB are presented as whole-file conflicts.</p>
+	 * @param bigFileThreshold size in bytes.
+	 */
+	public void setBigFileThreshold(long bigFileThreshold) {
+		this.bigFileThreshold = bigFileThreshold;
+	}
+	
+	/**
+	 * @return the user code regions used when merging, null if not used.
+	 */
+	public ProtectedRegions getProtectedRegions() {
+		return protectedRegions;
+	}
+	
+	/**
+	 * <p>Sets the user code regions. When set, user region bodies are 
+	 * carried over to the generation before merging conflicting files, only
+	 * lines outside of the regions may conflict. Files above the big file
+	 * threshold are merged without regions.</p>
+	 * @param protectedRegions the regions description, null to disable.
+	 */
+	public void setProtectedRegions(ProtectedRegions protectedRegions) {
+		this.protectedRegions = protectedRegions;
+	}
+	
+	/**
+	 * @return the diff algorithm used to merge conflicting files.
+	 */
+	public SupportedAlgorithm getDiffAlgorithm() {
+		return diffAlgorithm;
+	}
+	
+	/**
+	 * <p>Sets the diff algorithm used to merge conflicting files, 
+	 * {@link SupportedAlgorithm#HISTOGRAM} by default.</p>
+	 */
+	public void setDiffAlgorithm(SupportedAlgorithm diffAlgorithm) {
+		this.diffAlgorithm = diffAlgorithm;
+	}
+	
+	/**
+	 * @return the line comparator used to merge conflicting files.
+	 */
+	public RawTextComparator getComparator() {
+		return comparator;
+	}
+	
+	/**
+	 * <p>Sets the line comparator used to merge conflicting files, for 
+	 * instance {@link RawTextComparator#WS_IGNORE_ALL} to ignore whitespace
+	 * changes. Files above the big file threshold are always compared 
+	 * exactly.</p>
+	 */
+	public void setComparator(RawTextComparator comparator) {
+		this.comparator = comparator;
+	}
+	
+	/**
+	 * @return the maximum time in milliseconds to merge one file, 0 for no
+	 * limit.
+	 */
+	public long getMergeTimeBudget() {
+		return mergeTimeBudget;
+	}
+	
+	/**
+	 * <p>Sets the maximum time to merge one file. When a file merge exceeds
+	 * it, the file is presented as a whole-file conflict and its path is 
+	 * recorded in the {@link MergeStatistics}.</p>
+	 * @param mergeTimeBudget time in milliseconds, 0 for no limit.
+	 */
+	public void setMergeTimeBudget(long mergeTimeBudget) {
+		this.mergeTimeBudget = mergeTimeBudget;
+	}
+	
+	/**
+	 * @return the object database shared with other generators, null if
+	 * not used.
+	 */
+	public File getSharedObjectStore() {
+		return sharedObjectStore;
+	}
+	
+	/**
+	 * <p>Sets an object database shared with other generators, in the 
+	 * style of Git alternates. New objects are written to the shared store,
+	 * objects already present aren't written again. Objects written in the
+	 * repository before are still read from it. The repository records the
+	 * shared store in its alternates, it must not be moved.</p>
+	 * 
+	 * <p>Many generators, from one or many processes, can use the same 
+	 * store: objects are written to temporary files and renamed to their 
+	 * name, which is the hash of their contents.</p>
+	 * @param sharedObjectStore the objects folder, null to use the 
+	 * repository one.
+	 */
+	public void setSharedObjectStore(File sharedObjectStore) {
+		this.sharedObjectStore = sharedObjectStore;
+	}
+	
+	/**
+	 * @return true if generation and user modifications are committed in 
+	 * packs.
+	 */
+	public boolean isPackedCommits() {
+		return packedCommits;
+	}
+	
+	/**
+	 * <p>Sets if generation and user modifications commits write all their
+	 * objects (blobs, trees and commit) in one pack file with its index
+	 * instead of one loose object per file. A cycle then writes a few files
+	 * in the object database whatever the number of generated files.</p>
+	 * @param packedCommits true to write packs, false by default.
+	 */
+	public void setPackedCommits(boolean packedCommits) {
+		this.packedCommits = packedCommits;
+	}
+	
+	/**
+	 * @return the number of packs above which packs are consolidated.
+	 */
+	public int getMaxPacks() {
+		return maxPacks;
+	}
+	
+	/**
+	 * <p>Sets the number of packs above which all packs are consolidated in
+	 * one at the end of a cycle, {@link #DEFAULT_MAX_PACKS} by default. 
+	 * Each packed commit adds a pack and object lookups get slower with the
+	 * number of packs. Packs aren't consolidated with a shared object store
+	 * since shared objects would be copied in the output repository.</p>
+	 * @param maxPacks number of packs, 0 to never consolidate.
+	 */
+	public void setMaxPacks(int maxPacks) {
+		this.maxPacks = maxPacks;
+	}
+	
+	/**
+	 * @return true if conflict resolutions are remembered across 
+	 * generations.
+	 */
+	public boolean isRememberResolutions() {
+		return rememberResolutions;
+	}
+	
+	/**
+	 * <p>Sets if conflict resolutions are remembered. Each resolved conflict
+	 * is recorded in the repository with a fingerprint of its path, user 
+	 * and generation texts. When the same conflict comes back, it's 
+	 * resolved the same way and files which conflicts are all known aren't
+	 * given to the conflict handler.</p>
+	 * @param rememberResolutions true to remember resolutions, false by 
+	 * default.
+	 */
+	public void setRememberResolutions(boolean rememberResolutions) {
+		this.rememberResolutions = rememberResolutions;
+	}
+	
+	/**
+	 * @return the number of merges after which an unused resolution is 
+	 * forgotten.
+	 */
+	public int getResolutionMaxAge() {
+		return resolutionMaxAge;
+	}
+	
+	/**
+	 * <p>Sets the number of merges after which a remembered resolution 
+	 * that wasn't used is forgotten, {@link #DEFAULT_RESOLUTION_MAX_AGE} by
+	 * default.</p>
+	 */
+	public void setResolutionMaxAge(int resolutionMaxAge) {
+		this.resolutionMaxAge = resolutionMaxAge;
+	}
+	
+	/**
+	 * @return when generated and merged files are forced to the storage 
+	 * device.
+	 */
+	public Durability getDurability() {
+		return output.getDurability();
+	}
+	
+	/**
+	 * <p>Sets when generated and merged files are forced to the storage 
+	 * device, {@link Durability#NONE} by default. With 
+	 * {@link Durability#BATCH} all files written during the cycle are
+	 * forced at the end of the generation.</p>
+	 */
+	public void setDurability(Durability durability) {
+		this.output = new OutputWriter(durability);
+	}
+	
+	/**
+	 * @return the probe notified of the cycles phases, null if none.
+	 */
+	public GenerationProbe getProbe() {
+		return probe;
+	}
+	
+	/**
+	 * <p>Sets a probe notified of the cycles phases and of file operations
+	 * above the probe file threshold.</p>
+	 * @param probe the probe, null to disable notifications.
+	 */
+	public void setProbe(GenerationProbe probe) {
+		this.probe = probe;
+	}
+	
+	/**
+	 * @return the size above which file writes and merges are notified to
+	 * the probe.
+	 */
+	public long getProbeFileThreshold() {
+		return probeFileThreshold;
+	}
+	
+	/**
+	 * <p>Sets the size above which file writes and merges are notified to the
+	 * probe, by default files aren't notified.</p>
+	 * @param probeFileThreshold size in bytes, 0 to notify all files.
+	 */
+	public void setProbeFileThreshold(long probeFileThreshold) {
+		this.probeFileThreshold = probeFileThreshold;
+	}
+	
+	/**
+	 * <p>Sets the size of the cache used by {@link #getContents(String, 
+	 * Version)}, the cache is emptied.</p>
+	 * @param blobCacheSize size in characters, 0 to disable the cache.
+	 */
+	public void setBlobCacheSize(long blobCacheSize) {
+		this.blobCache = new BlobCache(blobCacheSize);
+	}
+	
+	/**
+	 * @return the folder where merged files are materialized after each 
+	 * cycle, null if not used.
+	 */
+	public File getSnapshotFolder() {
+		return snapshotFolder;
+	}
+	
+	/**
+	 * <p>Sets a folder where merged files are materialized at the end of
+	 * each cycle. While the output folder is rebuilt during a cycle, readers
+	 * such as indexers can use {@link #getSnapshot()} which always contains
+	 * the last completed merge: it's a symbolic link switched atomically 
+	 * once the new merge is written aside. The snapshot before the previous
+	 * one is recycled, only the paths changed since then are written. 
+	 * Without symbolic links, {@link #getSnapshot()} gives the snapshot 
+	 * folder itself and must be called again to see later merges.</p>
+	 * <p>The folder is dedicated to snapshots, other files in it are 
+	 * deleted. Snapshot files must not be modified.</p>
+	 * @param snapshotFolder the folder, null to disable snapshots.
+	 */
+	public void setSnapshotFolder(File snapshotFolder) {
+		this.snapshotFolder = snapshotFolder;
+	}
+	
+	/**
+	 * @return the link to the last completed merge in the snapshot folder 
+	 * (or the last snapshot without symbolic links), null if snapshots 
+	 * aren't used.
+	 */
+	public File getSnapshot() {
+		return snapshotFolder == null ? null : OutputSnapshot.getSnapshot(snapshotFolder);
+	}
+	
+	/**
+	 * @return the statistics of the last ended generation.
+	 */
+	public MergeStatistics getMergeStatistics() {
+		return statistics;
+	}
+	
+	/**
+	 * <p>Opens a session which keeps the repository open across generation
+	 * cycles until it's closed.</p>
+	 * @return the session, it must be closed.
+	 */
+	public GeneratorSession openSession() {
+		if ( session != null ) {
+			throw new IllegalStateException("A session is already open.");
+		}
+		session = new GeneratorSession(this);
+		if ( git != null ) {
+			// opened during a cycle
+			session.setRepository(git.getRepository());
+		}
+		return session;
+	}
+	
+	/**
+	 * <p>Gives the paths (files or folders) modified since last generation,
+	 * the next start only searches user modifications in these paths.</p>
+	 * @param modifiedPaths the paths, null to search the whole output.
+	 */
+	void setModifiedPaths(Collection<String> modifiedPaths) {
+		this.modifiedPaths = modifiedPaths;
+	}
+	
+	void closeSession(GeneratorSession closed) {
+		if ( session == closed ) {
+			session = null;
+		}
+	}
+	
 	/**
 	 * <p>Prepares the next generation. It collects the modifications made 
 	 * since last generation. By default all modifications are kept and merged
@@ -150,6 +679,47 @@ public class IterativeFileGenerator {
 	 * @throws GitAPIException  if Git can't manipulate the repository.
 	 */
 	public void start(ModificationHandler callback) throws IOException, GitAPIException {
+		start(callback, null);
+	}
+	
+	/**
+	 * <p>Prepares the next generation of a part of the output. Only files 
+	 * inside the given path prefixes are cleaned, regenerated and merged,
+	 * files outside keep their last generated and user versions. User 
+	 * modifications are still collected in the whole output.</p>
+	 * 
+	 * @param callback called for each user modification.
+	 * @param scope path prefixes (folders or files) of the generated files,
+	 * null or empty for the whole output. Prefixes are relative paths 
+	 * without '.' or '..' segments.
+	 * 
+	 * @throws IOException for any file manipulation gone wrong.
+	 * @throws GitAPIException  if Git can't manipulate the repository.
+	 */
+	public void start(ModificationHandler callback, Collection<String> scope) throws IOException, GitAPIException {
+		final List<Modification> modifications = collectModifications(scope);
+		if ( modifications.isEmpty() == false && callback != null ) {
+			callback.modifications(modifications);
+		}
+		startGeneration(modifications);
+	}
+	
+	/**
+	 * <p>First part of start: opens (or creates) the repository and collects
+	 * the user modifications made since last generation.</p>
+	 * @param scope path prefixes of the generated files, null or empty for
+	 * the whole output.
+	 * @return the modifications to accept or reject before calling 
+	 * {@link #startGeneration(List)}.
+	 */
+	List<Modification> collectModifications(Collection<String> scope) throws IOException, GitAPIException {
+		this.scope = normalizeScope(scope);
+		generationStarted = false;
+		output.startRecording();
+		if ( probe != null ) {
+			probe.cycleStarted(this);
+		}
+		
 		// creates output folder if needed.
 		if ( outputFolder.exists() == false ) {
 			outputFolder.mkdirs();
@@ -165,9 +735,13 @@ public class IterativeFileGenerator {
 		}
 		
 		// is the folder already a generation folder, checks the git file.
-		if ( hannahFolder.exists() == false ) {
+		if ( session != null && session.getRepository() != null ) {
+			// repository is kept open by the session.
+			git = new Git(session.getRepository());
+			
+		} else if ( hannahFolder.exists() == false ) {
 			// no repository, creates the repository.
-			git = Git.init().setDirectory(outputFolder).setBare(false).call();
+			git = createRepository();
 			
 			final String[] children = outputFolder.list();
 			if ( children == null || children.length <= 1 ) {
@@ -176,41 +750,72 @@ public class IterativeFileGenerator {
 			}
 
 			// creates the master branch
-			git.add().addFilepattern(".").call();
+			git.add().setWorkingTreeIterator(new OutputTreeIterator(git.getRepository())).addFilepattern(".").call();
 			git.commit().setMessage("Creates master branch.").call();
 			
 			// create the generation branch
 			git.branchCreate().setName(GENERATION).call();
 			
 		} else {
-			// repository exists, renames it and opens it.
-			hannahFolder.renameTo(gitFolder);
-			git = Git.open(outputFolder);
+			// repository exists, opens it.
+			git = openRepository();
+		}
+		if ( session != null ) {
+			session.setRepository(git.getRepository());
 		}
+		
+		// conflicts still pending are resolved using user version
+		resolvePendingConflicts(ConflictHandler.user, false);
 
-		// retrieves diffs
-		final List<DiffEntry> diffEntries = git.diff().call();
-		if ( diffEntries.size() > 0 ) {
-			// creates modifications and calls the handler.
-			final List<Modification> modifications = createModificationList(diffEntries);
-			if ( callback != null ) {
-				callback.modifications(modifications);
+		// retrieves diffs (only for modified paths if they're known)
+		phaseStarted(Phase.DIFF);
+		final Collection<String> paths = modifiedPaths;
+		modifiedPaths = null;
+		final List<DiffEntry> diffEntries;
+		if ( paths != null && paths.isEmpty() ) {
+			diffEntries = Collections.emptyList();
+		} else {
+			final DiffCommand diff = git.diff().setNewTree(new OutputTreeIterator(git.getRepository())).setShowNameAndStatusOnly(true);
+			if ( paths != null ) {
+				diff.setPathFilter(PathFilterGroup.createFromStrings(paths));
 			}
-			
-			// checks which modifications should be committed
-			boolean somethingAccepted = false;
-			final AddCommand add = git.add();
+			diffEntries = diff.call();
+		}
+		phaseEnded(Phase.DIFF);
+		return createModificationList(diffEntries);
+	}
+	
+	/**
+	 * <p>Second part of start: commits accepted modifications, reverts the
+	 * other ones and prepares the output folder for the generation.</p>
+	 * @param modifications the collected modifications.
+	 */
+	void startGeneration(List<Modification> modifications) throws IOException, GitAPIException {
+		generationStarted = true;
+		phaseStarted(Phase.CLEANUP);
+		if ( modifications.size() > 0 ) {
+			// checks which modifications should be committed
+			final List<String> accepted = new ArrayList<String>();
 			for ( Modification modification : modifications ) {
 				if ( modification.isAccept() ) {
-					somethingAccepted = true;
-					add.addFilepattern(modification.getDiff().getNewPath());
+					accepted.add(modification.getDiff().getNewPath());
 				}
 			}
 			
 			// calls add on accepted modifications
-			if ( somethingAccepted ) {
-				add.call();
-				git.commit().setMessage("User modifications").call();
+			if ( accepted.isEmpty() == false ) {
+				if ( packedCommits ) {
+					new PackCommitter(git.getRepository()).commit(accepted, Collections.<String>emptyList(), "User modifications");
+				} else {
+					final AddCommand add = git.add().setWorkingTreeIterator(new OutputTreeIterator(git.getRepository()));
+					for ( String path : accepted ) {
+						add.addFilepattern(path);
+					}
+					add.call();
+					git.commit().setMessage("User modifications").call();
+				}
+				// readers see accepted modifications during the cycle
+				updateSnapshot(git.getRepository());
 			}
 			
 			// reverts un-commited diffs
@@ -219,17 +824,261 @@ public class IterativeFileGenerator {
 		}
 		
 		// checkouts generation branch
-		git.checkout().setName(GENERATION).call();
+		checkoutGeneration();
+		
+		// loads input keys of last generation
+		lastGeneration = git.getRepository().resolve(GENERATION);
+		inputKeys = new InputKeys(hannahFolder);
+		inputKeys.load(lastGeneration);
 		
 		// clear files before new generation
-		final File[] children = outputFolder.listFiles();
-		if ( children != null ) { 
-			for ( File child : children ) {
-				if ( NOT_DELETED_FILES.contains(child.getName()) == false ) {
-					FileUtil.delete(child);
+		if ( this.scope == null ) {
+			final File[] children = outputFolder.listFiles();
+			if ( children != null ) { 
+				for ( File child : children ) {
+					if ( NOT_DELETED_FILES.contains(child.getName()) == false ) {
+						FileUtil.delete(child);
+					}
 				}
 			}
+		} else {
+			// files outside of the scope are generated again as is
+			inputKeys.keepOutside(this.scope);
+			for ( String prefix : this.scope ) {
+				FileUtil.delete(new File(outputFolder, prefix));
+			}
+		}
+		phaseEnded(Phase.CLEANUP);
+		phaseStarted(Phase.WRITE);
+	}
+	
+	/**
+	 * <p>Checks out the generation branch like the checkout command, but
+	 * the output folder is read with an {@link OutputTreeIterator}: 
+	 * symbolic links committed in master aren't seen as modified.</p>
+	 */
+	private void checkoutGeneration() throws IOException {
+		final Repository repository = git.getRepository();
+		final RevWalk walk = new RevWalk(repository);
+		try {
+			final RevTree head = walk.parseCommit(repository.resolve(Constants.HEAD)).getTree();
+			final RevTree generation = walk.parseCommit(repository.resolve(GENERATION)).getTree();
+			final DirCacheCheckout checkout = new DirCacheCheckout(repository, head, repository.lockDirCache(), generation, new OutputTreeIterator(repository));
+			checkout.setFailOnConflict(true);
+			checkout.checkout();
+		} finally {
+			walk.release();
+		}
+		
+		final RefUpdate.Result result = repository.updateRef(Constants.HEAD).link(Constants.R_HEADS + GENERATION);
+		if ( result != RefUpdate.Result.FORCED && result != RefUpdate.Result.NEW && result != RefUpdate.Result.NO_CHANGE ) {
+			throw new IOException("Can't check out '"+ GENERATION +"': " + result);
+		}
+	}
+	
+	/**
+	 * @return the paths of the files written in the output folder since 
+	 * the current or last cycle started.
+	 */
+	Collection<String> getWrittenPaths() {
+		final Path root = outputFolder.toPath().toAbsolutePath();
+		final List<String> paths = new ArrayList<String>();
+		for ( Path file : output.getWritten() ) {
+			final Path relative = root.relativize(file.toAbsolutePath());
+			final StringBuilder path = new StringBuilder();
+			for ( Path part : relative ) {
+				if ( path.length() > 0 ) path.append('/');
+				path.append(part.toString());
+			}
+			paths.add(path.toString());
+		}
+		return paths;
+	}
+	
+	/**
+	 * <p>Abandons the current cycle after a failure: the pending merge is 
+	 * dropped, the output folder goes back to master (generated files 
+	 * not in master are deleted) and the repository is released. User 
+	 * modifications accepted during the cycle stay in master. Does 
+	 * nothing outside of a cycle.</p>
+	 */
+	void abortCycle() throws IOException, GitAPIException {
+		if ( git == null ) return;
+		pendingMerge = null;
+		try {
+			if ( generationStarted ) {
+				final Repository repository = git.getRepository();
+				repository.writeMergeHeads(null);
+				repository.writeMergeCommitMsg(null);
+				final RefUpdate head = repository.updateRef(Constants.HEAD);
+				head.link(Constants.R_HEADS + MASTER);
+				git.reset().setMode(ResetType.HARD).setRef(MASTER).call();
+				git.clean().call();
+			}
+		} finally {
+			generationStarted = false;
+			if ( session == null ) {
+				git.getRepository().close();
+			}
+			git = null;
+			if ( probe != null ) {
+				probe.cycleEnded(this);
+			}
+		}
+	}
+	
+	private void phaseStarted(Phase phase) {
+		if ( probe != null ) {
+			probe.phaseStarted(this, phase);
+		}
+	}
+	
+	private void phaseEnded(Phase phase) {
+		if ( probe != null ) {
+			probe.phaseEnded(this, phase);
+		}
+	}
+	
+	/**
+	 * <p>Removes trailing separators and checks prefixes.</p>
+	 * @return the prefixes or null for the whole output.
+	 */
+	private List<String> normalizeScope(Collection<String> scope) {
+		if ( scope == null || scope.isEmpty() ) return null;
+		
+		final List<String> prefixes = new ArrayList<String>(scope.size());
+		for ( String prefix : scope ) {
+			prefix = prefix.replace('\\', '/');
+			while ( prefix.endsWith("/") ) {
+				prefix = prefix.substring(0, prefix.length() - 1);
+			}
+			// prefixes are delete roots, they must be relative paths inside the output
+			if ( prefix.length() == 0 || new File(prefix).isAbsolute() ) {
+				throw new IllegalArgumentException("Invalid scope '"+ prefix +"'.");
+			}
+			for ( final String segment : prefix.split("/", -1) ) {
+				if ( segment.length() == 0 || segment.equals(".") || segment.equals("..") ) {
+					throw new IllegalArgumentException("Invalid scope '"+ prefix +"'.");
+				}
+			}
+			if ( prefix.equals(HANNAH_REPOSITORY_FILENAME) || prefix.startsWith(HANNAH_REPOSITORY_FILENAME + "/") ) {
+				throw new IllegalArgumentException("Invalid scope '"+ prefix +"'.");
+			}
+			prefixes.add(prefix);
+		}
+		return prefixes;
+	}
+	
+	/**
+	 * <p>Checks if path is in the scope of the current cycle.</p>
+	 */
+	private boolean isInScope(String path) {
+		return scope == null || isInScope(scope, path);
+	}
+	
+	/**
+	 * <p>Checks if path is one of the prefixes or inside one of them.</p>
+	 */
+	static boolean isInScope(Collection<String> prefixes, String path) {
+		for ( String prefix : prefixes ) {
+			if ( path.startsWith(prefix) && ( path.length() == prefix.length() || path.charAt(prefix.length()) == '/' ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * <p>Creates the repository in the output folder and opens it.</p>
+	 */
+	private Git createRepository() throws IOException {
+		// creates it with its own objects folder, shared store may exist
+		final Repository repository = new FileRepositoryBuilder().setGitDir(hannahFolder).setWorkTree(outputFolder).build();
+		try {
+			repository.create();
+		} finally {
+			repository.close();
 		}
+		return openRepository();
+	}
+	
+	/**
+	 * <p>Opens the repository in the output folder.</p>
+	 */
+	private Git openRepository() throws IOException {
+		excludeRepositoryFolder();
+		registerSharedObjectStore();
+		return new Git(createRepositoryBuilder().setMustExist(true).build());
+	}
+	
+	/**
+	 * <p>The repository folder is inside the working tree, it's excluded to
+	 * be ignored by status and add.</p>
+	 */
+	private void excludeRepositoryFolder() throws IOException {
+		addLine(new File(hannahFolder, "info/exclude"), "/" + HANNAH_REPOSITORY_FILENAME);
+	}
+	
+	/**
+	 * <p>Adds the shared object store to the repository alternates (if 
+	 * needed), the repository can then be read without knowing it.</p>
+	 */
+	private void registerSharedObjectStore() throws IOException {
+		if ( sharedObjectStore == null ) return;
+		if ( sharedObjectStore.isDirectory() == false && sharedObjectStore.mkdirs() == false ) {
+			throw new IOException("Can't create folder '"+ sharedObjectStore +"'.");
+		}
+		addLine(new File(hannahFolder, "objects/info/alternates"), sharedObjectStore.getAbsolutePath());
+	}
+	
+	/**
+	 * <p>Adds a line to a repository file if it isn't already present.</p>
+	 */
+	private void addLine(File file, String line) throws IOException {
+		String contents = "";
+		if ( file.exists() ) {
+			contents = FileUtil.loadContents(file, "UTF-8");
+			for ( final String existing : contents.split("\n") ) {
+				if ( existing.trim().equals(line) ) return;
+			}
+			if ( contents.length() > 0 && contents.endsWith("\n") == false ) {
+				contents += "\n";
+			}
+		}
+		FileUtil.writeFile(file, contents + line + "\n", "UTF-8");
+	}
+	
+	/**
+	 * <p>With a shared object store, objects are written to the shared 
+	 * store and the repository own objects are read as an alternate.</p>
+	 */
+	private FileRepositoryBuilder createRepositoryBuilder() {
+		final FileRepositoryBuilder builder = new FileRepositoryBuilder();
+		builder.setGitDir(hannahFolder).setWorkTree(outputFolder);
+		if ( sharedObjectStore != null ) {
+			builder.setObjectDirectory(sharedObjectStore);
+			builder.addAlternateObjectDirectory(new File(hannahFolder, "objects"));
+		}
+		return builder;
+	}
+	
+	/**
+	 * <p>Create file with given file name and binary contents. Binary files
+	 * aren't merged line by line, in case of conflict the whole file is 
+	 * resolved choosing user or generation version.</p>
+	 * @param filename relative path of the file in the output folder.
+	 * @param contents the file contents.
+	 * @throws IOException
+	 */
+	public void generate(String filename, byte[] contents) throws IOException {
+		checkScope(filename);
+		final File destinationFile = new File(outputFolder, filename);
+		final long begin = probed(contents.length) ? System.nanoTime() : 0;
+		output.write(destinationFile, contents);
+		if ( begin != 0 ) {
+			probe.fileWritten(this, filename, contents.length, System.nanoTime() - begin);
+		}
+		inputKeys.remove(filename);
 	}
 	
 	public void generate(String filename, String contents) throws IOException {
@@ -245,10 +1094,292 @@ public class IterativeFileGenerator {
 	 * @throws IOException
 	 */
 	public void generate(String filename, String contents, String encoding) throws IOException {
+		checkScope(filename);
 		final File destinationFile = new File(outputFolder, filename);
-		FileUtil.writeFile(destinationFile, contents, encoding);
+		final long begin = probed(contents.length()) ? System.nanoTime() : 0;
+		output.write(destinationFile, contents, encoding);
+		if ( begin != 0 ) {
+			probe.fileWritten(this, filename, contents.length(), System.nanoTime() - begin);
+		}
+		inputKeys.remove(filename);
+	}
+	
+	/**
+	 * <p>Checks if an operation on a file of given size is notified to the 
+	 * probe.</p>
+	 */
+	private boolean probed(long size) {
+		return probe != null && size >= probeFileThreshold;
+	}
+	
+	public void generateIfChanged(String filename, String inputKey, ContentsSupplier supplier) throws IOException {
+		generateIfChanged(filename, inputKey, supplier, "UTF-8");
+	}
+	
+	/**
+	 * <p>Creates file with given file name if its inputs changed since last
+	 * generation. The input key identifies the inputs used to render the 
+	 * file (for example a hash of the model elements and the template
+	 * version). When the key is the same as last generation, the file is
+	 * copied from last generation and the supplier isn't called.</p>
+	 * @param filename relative path of the file in the output folder.
+	 * @param inputKey key of the inputs.
+	 * @param supplier renders the contents when needed.
+	 * @param encoding contents encoding.
+	 * @throws IOException
+	 */
+	public void generateIfChanged(String filename, String inputKey, ContentsSupplier supplier, String encoding) throws IOException {
+		checkScope(filename);
+		if ( inputKeys.matches(filename, inputKey) ) {
+			final ObjectId id = findLastGenerated(filename);
+			if ( id != null ) {
+				final AtomicOutputStream stream = output.open(new File(outputFolder, filename));
+				try {
+					open(id).copyTo(stream);
+					stream.commit();
+				} finally {
+					stream.close();
+				}
+				inputKeys.put(filename, inputKey);
+				return;
+			}
+		}
+		
+		generate(filename, supplier.getContents(), encoding);
+		inputKeys.put(filename, inputKey);
 	}
 
+	/**
+	 * <p>Files outside of the scope wouldn't be committed.</p>
+	 */
+	private void checkScope(String filename) {
+		if ( isInScope(filename.replace('\\', '/')) == false ) {
+			throw new IllegalArgumentException("File '"+ filename +"' is outside of the generation scope.");
+		}
+	}
+	
+	/**
+	 * <p>Searches the blob of given path in last generation.</p>
+	 * @return the blob id or null if path wasn't generated.
+	 */
+	private ObjectId findLastGenerated(String path) throws IOException {
+		return blobCache.findBlob(git.getRepository(), lastGeneration, path);
+	}
+	
+	/**
+	 * <p>Exports the files of a generation in an archive, straight from the
+	 * repository. The output folder isn't used, the export can be done 
+	 * between cycles or during a cycle.</p>
+	 * @param revision the commit to export: {@link #GENERATION} for the last
+	 * generated files, {@link #MASTER} for the last merged files or a commit
+	 * id.
+	 * @param format archive format.
+	 * @param paths path prefixes to export, null or empty for all files.
+	 * @param out stream to write to, it isn't closed.
+	 * @throws IOException
+	 */
+	public void export(String revision, ArchiveFormat format, Collection<String> paths, OutputStream out) throws IOException {
+		final Repository repository = acquireRepository();
+		try {
+			final ObjectId commit = repository.resolve(revision);
+			if ( commit == null ) {
+				throw new IOException("Unknown revision '"+ revision +"'.");
+			}
+			new ArchiveExporter(repository, bigFileThreshold).export(commit, format, paths, out);
+		} finally {
+			release(repository);
+		}
+	}
+	
+	/**
+	 * <p>Gives the commit id of a revision, for instance to know the last 
+	 * generation a replica has.</p>
+	 * @param revision {@link #GENERATION}, {@link #MASTER} or any revision.
+	 * @return the commit id or null if the revision doesn't exist.
+	 * @throws IOException
+	 */
+	public String getCommitId(String revision) throws IOException {
+		if ( git == null && ( session == null || session.getRepository() == null ) && hannahFolder.exists() == false ) {
+			return null;
+		}
+		final Repository repository = acquireRepository();
+		try {
+			final ObjectId id = repository.resolve(revision);
+			return id == null ? null : id.name();
+		} finally {
+			release(repository);
+		}
+	}
+	
+	/**
+	 * <p>Reads a version of a file encoded in UTF-8 straight from the 
+	 * repository.</p>
+	 * @see #getContents(String, Version, String)
+	 */
+	public String getContents(String filename, Version version) throws IOException {
+		return getContents(filename, version, "UTF-8");
+	}
+	
+	/**
+	 * <p>Reads a version of a file straight from the repository, the output
+	 * folder isn't used. It can be called between cycles or during a cycle,
+	 * in which case {@link Version#GENERATED} is the generation from before
+	 * the cycle started.</p>
+	 * <p>Contents are cached by blob, tree lookups by commit, reading the 
+	 * same files again doesn't access the repository.</p>
+	 * @param filename relative path of the file in the output folder.
+	 * @param version the version to read.
+	 * @param encoding contents encoding.
+	 * @return the contents or null if the file doesn't exist in this 
+	 * version.
+	 * @throws IOException
+	 */
+	public String getContents(String filename, Version version, String encoding) throws IOException {
+		if ( git == null && ( session == null || session.getRepository() == null ) && hannahFolder.exists() == false ) {
+			return null;
+		}
+		final Repository repository = acquireRepository();
+		try {
+			final ObjectId commit = resolve(repository, version);
+			if ( commit == null ) return null;
+			return blobCache.getContents(repository, commit, filename.replace('\\', '/'), encoding);
+		} finally {
+			release(repository);
+		}
+	}
+	
+	/**
+	 * @return the commit for given version, null if there is none.
+	 */
+	private ObjectId resolve(Repository repository, Version version) throws IOException {
+		final ObjectId generation = git != null ? lastGeneration : repository.resolve(GENERATION);
+		if ( version == Version.GENERATED ) return generation;
+		
+		final ObjectId master = repository.resolve(MASTER);
+		if ( version == Version.MERGED ) return master;
+		if ( generation == null || master == null ) return null;
+		
+		final RevWalk walk = new RevWalk(repository);
+		try {
+			walk.setRevFilter(RevFilter.MERGE_BASE);
+			walk.markStart(walk.parseCommit(master));
+			walk.markStart(walk.parseCommit(generation));
+			return walk.next();
+		} finally {
+			walk.release();
+		}
+	}
+	
+	/**
+	 * <p>Exports the generation and master branches in a Git bundle to 
+	 * replicate them in another output folder with 
+	 * {@link #importBundle(InputStream)}. Only the objects the replica 
+	 * doesn't have are written.</p>
+	 * @param known commits the replica already has (given by 
+	 * {@link #getCommitId(String)} on the replica), null or empty for a full
+	 * bundle.
+	 * @param out stream to write to, it isn't closed.
+	 * @throws IOException
+	 */
+	public void exportBundle(Collection<String> known, OutputStream out) throws IOException {
+		final Repository repository = acquireRepository();
+		try {
+			new GenerationBundle(repository).write(known, out);
+		} finally {
+			release(repository);
+		}
+	}
+	
+	/**
+	 * <p>Imports a bundle written by {@link #exportBundle(Collection, 
+	 * OutputStream)}. The generation and master branches are replaced and 
+	 * the output folder is updated to master, the replica repository is 
+	 * created if needed. Modifications made in the replica output folder 
+	 * are lost.</p>
+	 * @param in stream to read the bundle from, it isn't closed.
+	 * @throws IOException
+	 * @throws GitAPIException if Git can't update the output folder.
+	 */
+	public void importBundle(InputStream in) throws IOException, GitAPIException {
+		if ( git != null ) {
+			throw new IllegalStateException("A bundle can't be imported during a generation cycle.");
+		}
+		if ( hannahFolder.exists() == false ) {
+			if ( outputFolder.exists() == false && outputFolder.mkdirs() == false ) {
+				throw new IOException("Can't create folder '"+ outputFolder +"'.");
+			}
+			createRepository().getRepository().close();
+		}
+		
+		final Repository repository = acquireRepository();
+		try {
+			new GenerationBundle(repository).read(in);
+			
+			final RefUpdate head = repository.updateRef(Constants.HEAD);
+			head.link(Constants.R_HEADS + MASTER);
+			new Git(repository).reset().setMode(ResetType.HARD).setRef(MASTER).call();
+			updateSnapshot(repository);
+			output.sync();
+		} finally {
+			release(repository);
+		}
+	}
+	
+	/**
+	 * <p>Repacks reachable objects in one pack when there are too many 
+	 * packs.</p>
+	 */
+	private void consolidatePacks(Repository repository) throws IOException {
+		if ( packedCommits == false || maxPacks <= 0 || sharedObjectStore != null ) return;
+		
+		final File[] packs = new File(((FileRepository) repository).getObjectDatabase().getDirectory(), "pack").listFiles();
+		if ( packs == null ) return;
+		int count = 0;
+		for ( File pack : packs ) {
+			if ( pack.getName().endsWith(".pack") ) count++;
+		}
+		if ( count <= maxPacks ) return;
+		
+		final GC gc = new GC((FileRepository) repository);
+		gc.repack();
+		gc.prunePacked();
+	}
+	
+	/**
+	 * <p>Materializes master in the snapshot folder if used.</p>
+	 */
+	private void updateSnapshot(Repository repository) throws IOException {
+		if ( snapshotFolder == null ) return;
+		final ObjectId master = repository.resolve(MASTER);
+		if ( master != null ) {
+			new OutputSnapshot(repository, snapshotFolder, output).update(master);
+		}
+	}
+	
+	/**
+	 * <p>Gives the repository to read from: the one of the current cycle or
+	 * of the session, otherwise it's opened and {@link #release(Repository)}
+	 * closes it.</p>
+	 */
+	private Repository acquireRepository() throws IOException {
+		if ( git != null ) return git.getRepository();
+		if ( session != null && session.getRepository() != null ) return session.getRepository();
+		if ( hannahFolder.exists() == false ) {
+			throw new IOException("Folder '"+ outputFolder +"' doesn't contain any generation.");
+		}
+		return openRepository().getRepository();
+	}
+	
+	/**
+	 * <p>Closes a repository given by {@link #acquireRepository()} if it's 
+	 * not kept by the cycle or the session.</p>
+	 */
+	private void release(Repository repository) {
+		if ( git != null && git.getRepository() == repository ) return;
+		if ( session != null && session.getRepository() == repository ) return;
+		repository.close();
+	}
+	
 	/**
 	 * <p>Ends the generation. It asks to resolve conflicts (if any). By 
 	 * default conflict are resolved using user modifications.</p>
@@ -256,14 +1387,359 @@ public class IterativeFileGenerator {
 	 * @throws IOException
 	 */
 	public void end(ConflictHandler callback) throws IOException, GitAPIException {
-		final Status status = git.status().call();
+		final List<ConflictingFile> conflictingFiles = mergeGeneration();
+		
+		// in case of conflicts, uses the resolution mode to choose the outcome
+		if ( conflictingFiles.isEmpty() == false ) {
+			callback.conflicts(conflictingFiles);
+		}
+		completeMerge();
+	}
+	
+	/**
+	 * <p>First part of end: commits the generation and merges it. Files 
+	 * merged without conflict (or with remembered resolutions) are directly
+	 * written.</p>
+	 * @return the conflicting files to resolve before calling 
+	 * {@link #completeMerge()}.
+	 */
+	List<ConflictingFile> mergeGeneration() throws IOException, GitAPIException {
+		phaseEnded(Phase.WRITE);
+		statistics = new MergeStatistics();
+		pendingMerge = null;
+		final GenerationMerger merger = commitAndMerge();
+		if ( merger == null ) return Collections.emptyList();
+		
+		phaseStarted(Phase.RESOLVE);
+		final PendingMerge pending = new PendingMerge();
+		pending.cache = loadResolutionCache();
+		for ( final ConflictingEntry entry : merger.getConflictingEntries() ) {
+			final ConflictingFile conflictingFile = createConflictingFile(entry);
+			if ( isConflicting(conflictingFile) ) {
+				pending.conflicts = true;
+				if ( pending.cache != null ) {
+					final String[] fingerprints = pending.cache.fingerprints(conflictingFile);
+					if ( pending.cache.apply(conflictingFile, fingerprints) ) {
+						statistics.remembered();
+						writeResolution(conflictingFile, pending.resolutions);
+						continue;
+					}
+					pending.fingerprints.add(fingerprints);
+				}
+				statistics.conflicting();
+				pending.files.add(conflictingFile);
+				pending.entries.add(entry);
+			} else {
+				writeResolution(conflictingFile, pending.resolutions);
+			}
+		}
+		pendingMerge = pending;
+		// conflicts handler and completion may run in other threads
+		phaseEnded(Phase.RESOLVE);
+		return pending.files;
+	}
+	
+	/**
+	 * <p>Second part of end: writes the resolutions of the conflicting files,
+	 * commits the merge and releases the repository.</p>
+	 */
+	void completeMerge() throws IOException, GitAPIException {
+		final PendingMerge pending = pendingMerge;
+		pendingMerge = null;
+		if ( pending != null ) {
+			// applies callback selections
+			phaseStarted(Phase.RESOLVE);
+			for ( int i=0; i<pending.files.size(); i++ ) {
+				final ConflictingFile conflictingFile = pending.files.get(i);
+				if ( pending.cache != null ) {
+					pending.cache.record(conflictingFile, pending.fingerprints.get(i));
+				}
+				writeResolution(conflictingFile, pending.resolutions);
+			}
+			
+			if ( pending.cache != null ) {
+				pending.cache.save(output);
+			}
+			phaseEnded(Phase.RESOLVE);
+			
+			phaseStarted(Phase.MERGE);
+			commitMerge(pending.resolutions, pending.conflicts);
+			phaseEnded(Phase.MERGE);
+		}
+		releaseRepository();
+	}
+	
+	/**
+	 * <p>Forces files written during the cycle (if batched), releases the
+	 * repository (unless kept by a session) and ends the cycle.</p>
+	 */
+	private void releaseRepository() throws IOException {
+		consolidatePacks(git.getRepository());
+		updateSnapshot(git.getRepository());
+		output.sync();
+		if ( session == null ) {
+			git.getRepository().close();
+		}
+		git = null;
+		if ( probe != null ) {
+			probe.cycleEnded(this);
+		}
+	}
+	
+	/**
+	 * <p>Ends the generation resolving conflicting files one at a time. Each
+	 * file is merged, given to the callback, written and released before the
+	 * next one, only the largest conflicting file is kept in memory.</p>
+	 * @param callback callback to handle conflicts of each file
+	 * @throws IOException
+	 */
+	public void endStreaming(StreamingConflictHandler callback) throws IOException, GitAPIException {
+		phaseEnded(Phase.WRITE);
+		statistics = new MergeStatistics();
+		final GenerationMerger merger = commitAndMerge();
+		if ( merger != null ) {
+			phaseStarted(Phase.RESOLVE);
+			final Resolutions resolutions = new Resolutions();
+			final ResolutionCache cache = loadResolutionCache();
+			boolean conflicts = false;
+			for ( final ConflictingEntry entry : merger.getConflictingEntries() ) {
+				final ConflictingFile conflictingFile = createConflictingFile(entry);
+				if ( isConflicting(conflictingFile) ) {
+					conflicts = true;
+					if ( cache == null ) {
+						statistics.conflicting();
+						conflictingFile(callback, conflictingFile);
+					} else {
+						final String[] fingerprints = cache.fingerprints(conflictingFile);
+						if ( cache.apply(conflictingFile, fingerprints) ) {
+							statistics.remembered();
+						} else {
+							statistics.conflicting();
+							conflictingFile(callback, conflictingFile);
+							cache.record(conflictingFile, fingerprints);
+						}
+					}
+				}
+				writeResolution(conflictingFile, resolutions);
+			}
+			
+			if ( cache != null ) {
+				cache.save(output);
+			}
+			phaseEnded(Phase.RESOLVE);
+			
+			phaseStarted(Phase.MERGE);
+			commitMerge(resolutions, conflicts);
+			phaseEnded(Phase.MERGE);
+		}
+		releaseRepository();
+	}
+	
+	/**
+	 * <p>Gives a conflicting file to the callback, its time isn't part of 
+	 * the resolve phase.</p>
+	 */
+	private void conflictingFile(StreamingConflictHandler callback, ConflictingFile conflictingFile) {
+		phaseEnded(Phase.RESOLVE);
+		try {
+			callback.conflictingFile(conflictingFile);
+		} finally {
+			phaseStarted(Phase.RESOLVE);
+		}
+	}
+	
+	/**
+	 * <p>Ends the generation without waiting for conflicts to be resolved.
+	 * Conflicting files are committed with both sides of each conflict 
+	 * between conflict markers, whole-file conflicts with the user version,
+	 * and they're recorded as pending in the repository.</p>
+	 * <p>Pending conflicts can be resolved later with 
+	 * {@link #resolvePending(ConflictHandler)} or by editing the files. 
+	 * The next cycle takes edited files as user modifications and resolves
+	 * the files left as is using user version.</p>
+	 * @return the paths of the files with pending conflicts.
+	 * @throws IOException
+	 */
+	public List<String> endDeferred() throws IOException, GitAPIException {
+		mergeGeneration();
+		final PendingMerge pending = pendingMerge;
+		pendingMerge = null;
+		
+		final List<String> paths = new ArrayList<String>();
+		if ( pending != null ) {
+			phaseStarted(Phase.RESOLVE);
+			final PendingConflicts record = new PendingConflicts(hannahFolder);
+			for ( int i=0; i<pending.files.size(); i++ ) {
+				final ConflictingFile conflictingFile = pending.files.get(i);
+				if ( conflictingFile.isWholeFile() ) {
+					writeResolution(conflictingFile, pending.resolutions);
+				} else {
+					writeMarkers(conflictingFile, pending.resolutions);
+				}
+				record.add(pending.entries.get(i));
+				paths.add(conflictingFile.getPath());
+			}
+			
+			if ( pending.cache != null ) {
+				pending.cache.save(output);
+			}
+			record.save(output);
+			phaseEnded(Phase.RESOLVE);
+			
+			phaseStarted(Phase.MERGE);
+			commitResolutions(pending.resolutions, paths.isEmpty() ? mergeMessage(pending.conflicts) : "User/Generation merge with pending conflicts.");
+			phaseEnded(Phase.MERGE);
+		}
+		releaseRepository();
+		return paths;
+	}
+	
+	/**
+	 * @return the paths of the files with conflicts left by 
+	 * {@link #endDeferred()} and not resolved yet.
+	 * @throws IOException
+	 */
+	public List<String> getPendingConflicts() throws IOException {
+		final PendingConflicts record = new PendingConflicts(hannahFolder);
+		record.load();
+		final List<String> paths = new ArrayList<String>();
+		for ( final ConflictingEntry entry : record.getEntries() ) {
+			paths.add(entry.path);
+		}
+		return paths;
+	}
+	
+	/**
+	 * <p>Resolves the conflicts left by {@link #endDeferred()}, between 
+	 * cycles. Files left as is are merged again and given to the callback,
+	 * the resolutions are written and committed. Files edited in the output
+	 * folder are considered resolved by the user, the next cycle takes them
+	 * as user modifications.</p>
+	 * @param callback callback to handle conflicts
+	 * @throws IOException
+	 */
+	public void resolvePending(ConflictHandler callback) throws IOException, GitAPIException {
+		if ( git != null ) {
+			throw new IllegalStateException("Pending conflicts can't be resolved during a generation cycle.");
+		}
+		if ( hannahFolder.exists() == false ) return;
+		
+		final Repository repository = acquireRepository();
+		git = new Git(repository);
+		try {
+			resolvePendingConflicts(callback, true);
+			updateSnapshot(repository);
+			output.sync();
+		} finally {
+			git = null;
+			release(repository);
+		}
+	}
+	
+	/**
+	 * <p>Resolves pending conflicts with master checked out.</p>
+	 * @param remember false if the callback is a default choice, its 
+	 * resolutions aren't remembered.
+	 */
+	private void resolvePendingConflicts(ConflictHandler callback, boolean remember) throws IOException, GitAPIException {
+		final PendingConflicts record = new PendingConflicts(hannahFolder);
+		record.load();
+		if ( record.isEmpty() ) return;
+		
+		final Repository repository = git.getRepository();
+		final ObjectId master = repository.resolve(MASTER);
+		final ResolutionCache cache = loadResolutionCache();
+		final List<ConflictingFile> files = new ArrayList<ConflictingFile>();
+		final List<String[]> fingerprints = new ArrayList<String[]>();
+		final List<ConflictingFile> unresolved = new ArrayList<ConflictingFile>();
+		for ( final ConflictingEntry entry : record.getEntries() ) {
+			// edited files are left to the next diff
+			if ( isCommitted(repository, master, entry.path) == false ) continue;
+			
+			final ConflictingFile conflictingFile = createConflictingFile(entry);
+			files.add(conflictingFile);
+			if ( cache != null ) {
+				final String[] fileFingerprints = cache.fingerprints(conflictingFile);
+				if ( cache.apply(conflictingFile, fileFingerprints) ) {
+					fingerprints.add(fileFingerprints);
+					continue;
+				}
+				fingerprints.add(remember ? fileFingerprints : null);
+			}
+			unresolved.add(conflictingFile);
+		}
+		
+		if ( unresolved.isEmpty() == false ) {
+			callback.conflicts(unresolved);
+		}
+		
+		final Resolutions resolutions = new Resolutions();
+		for ( int i=0; i<files.size(); i++ ) {
+			final ConflictingFile conflictingFile = files.get(i);
+			if ( cache != null && fingerprints.get(i) != null ) {
+				cache.record(conflictingFile, fingerprints.get(i));
+			}
+			writeResolution(conflictingFile, resolutions);
+		}
+		if ( cache != null ) {
+			cache.save(output);
+		}
+		if ( files.isEmpty() == false ) {
+			commitResolutions(resolutions, "User/Generation merge conflicts resolutions.");
+		}
+		
+		record.clear();
+		record.save(output);
+	}
+	
+	/**
+	 * <p>Checks if the file in the output folder is the one committed in 
+	 * given commit.</p>
+	 */
+	private boolean isCommitted(Repository repository, ObjectId commit, String path) throws IOException {
+		final ObjectId committed = blobCache.findBlob(repository, commit, path);
+		final File file = new File(outputFolder, path);
+		if ( file.isFile() == false ) return committed == null;
+		if ( committed == null ) return false;
+		
+		final InputStream stream = new FileInputStream(file);
+		try {
+			return committed.equals(new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, file.length(), stream));
+		} finally {
+			stream.close();
+		}
+	}
+	
+	/**
+	 * <p>Commits the generated files into the generation branch and merges it
+	 * with-in the master branch.</p>
+	 * @return the merger if a merge commit is needed, null if master is up 
+	 * to date.
+	 */
+	private GenerationMerger commitAndMerge() throws IOException, GitAPIException {
+		// compares the scope of the working tree with the last generation
+		final Repository repository = git.getRepository();
+		final IndexDiff status = new IndexDiff(repository, Constants.HEAD, new OutputTreeIterator(repository));
+		if ( scope != null ) {
+			status.setFilter(PathFilterGroup.createFromStrings(scope));
+		}
 
 		// checks if needs commit.
-		if ( status.isClean() == false ) {
+		phaseStarted(Phase.STATUS);
+		final boolean changed = status.diff();
+		phaseEnded(Phase.STATUS);
+		
+		phaseStarted(Phase.COMMIT);
+		if ( changed && packedCommits ) {
+			final List<String> added = new ArrayList<String>(status.getModified());
+			added.addAll(status.getUntracked());
+			new PackCommitter(repository).commit(added, status.getMissing(), "Generation");
+			
+		} else if ( changed ) {
 			
 			// checks for files to add
 			boolean execute = false;
-			final AddCommand add = git.add();
+			final AddCommand add = git.add().setWorkingTreeIterator(new OutputTreeIterator(repository));
 			for ( String filename : status.getModified() ) {
 				execute = true;
 				add.addFilepattern(filename);
@@ -287,76 +1763,228 @@ public class IterativeFileGenerator {
 			git.commit().setMessage("Generation").call();
 		}
 		
-		// checks out master branch
-		git.checkout().setName(MASTER).call();
+		// saves input keys with the generation commit
+		inputKeys.save(git.getRepository().resolve(GENERATION), output);
+		phaseEnded(Phase.COMMIT);
+		
+		phaseStarted(Phase.MERGE);
+		try {
+			// without user modification, master only needs to follow generation
+			final GenerationMerger merger = new GenerationMerger(git.getRepository(), output);
+			if ( merger.fastForward(MASTER, GENERATION) ) return null;
+			
+			// merges generation branch with master, from the generation working tree.
+			return merger.merge(MASTER, GENERATION) ? merger : null;
+		} finally {
+			phaseEnded(Phase.MERGE);
+		}
+	}
+	
+	/**
+	 * <p>Loads remembered resolutions if they're used.</p>
+	 * @return the cache or null if resolutions aren't remembered.
+	 */
+	private ResolutionCache loadResolutionCache() throws IOException {
+		if ( rememberResolutions == false ) return null;
+		final ResolutionCache cache = new ResolutionCache(hannahFolder, resolutionMaxAge);
+		cache.load();
+		return cache;
+	}
+	
+	/**
+	 * <p>A file merged without conflict doesn't need to be handled.</p>
+	 */
+	private boolean isConflicting(ConflictingFile conflictingFile) {
+		return conflictingFile.isWholeFile() || conflictingFile.getConflicts().isEmpty() == false;
+	}
+	
+	/**
+	 * <p>Merges base, user and generation contents for given entry. When
+	 * user or generation version is binary, the file isn't merged and is 
+	 * presented as a whole-file conflict. When a version is bigger than the
+	 * big file threshold, the contents are merged from mapped files.</p>
+	 */
+	private ConflictingFile createConflictingFile(ConflictingEntry entry) throws IOException {
+		final ObjectLoader baseLoader = open(entry.base);
+		final ObjectLoader userLoader = open(entry.user);
+		final ObjectLoader generationLoader = open(entry.generation);
 		
-		// merges generation branch with master (resolving conflict with USER).
-		final Repository repo = git.getRepository();
-		final Ref generationHead = repo.getRef(GENERATION);
-		final MergeStatus mergeStatus = git.merge().include(generationHead).call().getMergeStatus();
+		final long size = probe != null ? Math.max(size(baseLoader), Math.max(size(userLoader), size(generationLoader))) : 0;
+		if ( probed(size) == false ) {
+			return createConflictingFile(entry, baseLoader, userLoader, generationLoader);
+		}
+		final long begin = System.nanoTime();
+		final ConflictingFile conflictingFile = createConflictingFile(entry, baseLoader, userLoader, generationLoader);
+		probe.fileMerged(this, entry.path, size, System.nanoTime() - begin);
+		return conflictingFile;
+	}
+	
+	private static long size(ObjectLoader loader) {
+		return loader == null ? 0 : loader.getSize();
+	}
+	
+	private ConflictingFile createConflictingFile(ConflictingEntry entry, ObjectLoader baseLoader, ObjectLoader userLoader, ObjectLoader generationLoader) throws IOException {
+		if ( isBinary(userLoader) || isBinary(generationLoader) ) {
+			return new ConflictingFile(entry.path, entry.user, entry.generation, true);
+		}
 		
-		// in case of conflicts, uses the resolution mode to choose the outcome
-		if ( mergeStatus == MergeStatus.CONFLICTING ) {
-			// maps to stores confliting files
-			final Map<String, DirCacheEntry> baseEntry = new LinkedHashMap<String, DirCacheEntry>();
-			final Map<String, DirCacheEntry> userEntry = new LinkedHashMap<String, DirCacheEntry>();
-			final Map<String, DirCacheEntry> generationEntry = new LinkedHashMap<String, DirCacheEntry>();
+		if ( isMappable(baseLoader) == false || isMappable(userLoader) == false || isMappable(generationLoader) == false ) {
+			return new ConflictingFile(entry.path, entry.user, entry.generation, false);
+		}
+		
+		final MergeResult<RawText> result;
+		if ( isBig(baseLoader) || isBig(userLoader) || isBig(generationLoader) ) {
+			final RawText baseText = MappedText.open(baseLoader, bigFileThreshold);
+			final RawText userText = MappedText.open(userLoader, bigFileThreshold);
+			final RawText generationText = MappedText.open(generationLoader, bigFileThreshold);
+			result = merge(entry.path, MappedText.COMPARATOR, baseText, userText, generationText);
+		} else {
+			byte[] base = getBytes(baseLoader);
+			final byte[] user = getBytes(userLoader);
+			byte[] generation = getBytes(generationLoader);
 			
-			// for all conflicting entry collects base, user and generation entries. 
-			final DirCache cache = repo.lockDirCache();
-			for ( int i=0; i<cache.getEntryCount(); i++ ) {
-				final DirCacheEntry entry = cache.getEntry(i);
-				switch (entry.getStage()) {
-				case DirCacheEntry.STAGE_1:
-					baseEntry.put(entry.getPathString(), entry);
-					break;
-				case DirCacheEntry.STAGE_2:
-					userEntry.put(entry.getPathString(), entry);
-					break;
-				case DirCacheEntry.STAGE_3:
-					generationEntry.put(entry.getPathString(), entry);
-					break;
-				}
+			// uses user region bodies for base and generation
+			if ( protectedRegions != null ) {
+				final Map<String, int[]> userRegions = protectedRegions.parse(user);
+				base = protectedRegions.carry(user, userRegions, base);
+				generation = protectedRegions.carry(user, userRegions, generation);
 			}
-
-			// creates list of conflicting files
-			final List<ConflictingFile> conflictingFiles = new ArrayList<ConflictingFile>();
-			final MergeAlgorithm mergeAlgorithm = new MergeAlgorithm();
-			for ( final String path : baseEntry.keySet() ) {
-				final RawText baseText = getRawText(baseEntry.get(path));
-				final RawText userText = getRawText(userEntry.get(path));
-				final RawText generationText = getRawText(generationEntry.get(path));
-				
-				final MergeResult<RawText> result = mergeAlgorithm.merge(RawTextComparator.DEFAULT, baseText, userText, generationText);
-				conflictingFiles.add(new ConflictingFile(path, result));
-				
-			}
-			// unlocks cache.
-			cache.unlock();
 			
-			// calls the callback
-			callback.conflicts(conflictingFiles);
+			final RawText baseText = new RawText(base);
+			final RawText userText = new RawText(user);
+			final RawText generationText = new RawText(generation);
+			result = merge(entry.path, comparator, baseText, userText, generationText);
+		}
+		
+		if ( result == null ) {
+			// merge budget exceeded
+			return new ConflictingFile(entry.path, entry.user, entry.generation, false);
+		}
+		return new ConflictingFile(entry.path, result);
+	}
+	
+	/**
+	 * <p>Merges texts with the diff algorithm. If a budget is set, the merge
+	 * runs in its own thread and is abandoned once the budget is exceeded.
+	 * </p>
+	 * @return the merge result or null if budget was exceeded.
+	 */
+	private MergeResult<RawText> merge(String path, SequenceComparator<RawText> comparator, final RawText base, final RawText user, final RawText generation) throws IOException {
+		final long start = System.nanoTime();
+		final MergeAlgorithm algorithm = new MergeAlgorithm(DiffAlgorithm.getAlgorithm(diffAlgorithm));
+		if ( mergeTimeBudget <= 0 ) {
+			final MergeResult<RawText> result = algorithm.merge(comparator, base, user, generation);
+			statistics.merged(System.nanoTime() - start);
+			return result;
+		}
+		
+		final SequenceComparator<RawText> interruptible = new InterruptibleComparator(comparator);
+		final FutureTask<MergeResult<RawText>> task = new FutureTask<MergeResult<RawText>>(new Callable<MergeResult<RawText>>() {
+			@Override
+			public MergeResult<RawText> call() throws Exception {
+				return algorithm.merge(interruptible, base, user, generation);
+			}
+		});
+		
+		MERGE_EXECUTOR.execute(task);
+		try {
+			final MergeResult<RawText> result = task.get(mergeTimeBudget, TimeUnit.MILLISECONDS);
+			statistics.merged(System.nanoTime() - start);
+			return result;
 			
-			// prepares the reset command
-			final ResetCommand reset = git.reset();
-
-			// applies callback selections
-			for ( final ConflictingFile conflictingFile : conflictingFiles ) {
-				final File file = new File(repo.getWorkTree(), conflictingFile.getPath());
-				FileUtil.writeFile(file, conflictingFile.getContents(), "UTF-8");
-				
-				reset.addPath(conflictingFile.getPath());
+		} catch (TimeoutException e) {
+			// stops the merge (as soon as the comparator is used)
+			task.cancel(true);
+			statistics.budgetExceeded(path, System.nanoTime() - start);
+			return null;
+			
+		} catch (InterruptedException e) {
+			task.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Merge interrupted.");
+			
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException) cause;
+			if ( cause instanceof Error ) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * <p>Writes the resolved contents of given file in the working tree and
+	 * registers the path to be added or removed with the resolutions.</p>
+	 */
+	private void writeResolution(ConflictingFile conflictingFile, Resolutions resolutions) throws IOException {
+		final File file = new File(git.getRepository().getWorkTree(), conflictingFile.getPath());
+		if ( conflictingFile.isWholeFile() ) {
+			final ObjectId id = conflictingFile.getResolvedObjectId();
+			if ( id == null ) {
+				// the selected side doesn't contain the file.
+				FileUtil.delete(file);
+				resolutions.remove(conflictingFile.getPath());
+				return;
 			}
+			
+			final AtomicOutputStream stream = output.open(file);
+			try {
+				open(id).copyTo(stream);
+				stream.commit();
+			} finally {
+				stream.close();
+			}
+		} else {
+			final AtomicOutputStream stream = output.open(file);
+			try {
+				conflictingFile.writeContents(stream);
+				stream.commit();
+			} finally {
+				stream.close();
+			}
+		}
+		resolutions.add(conflictingFile.getPath());
+	}
+	
+	/**
+	 * <p>Writes given file with conflict markers in the working tree and 
+	 * registers the path to be added.</p>
+	 */
+	private void writeMarkers(ConflictingFile conflictingFile, Resolutions resolutions) throws IOException {
+		final File file = new File(git.getRepository().getWorkTree(), conflictingFile.getPath());
+		final AtomicOutputStream stream = output.open(file);
+		try {
+			conflictingFile.writeMarkers(stream);
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+		resolutions.add(conflictingFile.getPath());
+	}
+	
+	/**
+	 * <p>Stages resolved paths and commits the merge.</p>
+	 * @param conflicts true if conflicts were resolved by the handler.
+	 */
+	private void commitMerge(Resolutions resolutions, boolean conflicts) throws IOException, GitAPIException {
+		commitResolutions(resolutions, mergeMessage(conflicts));
+	}
+	
+	private static String mergeMessage(boolean conflicts) {
+		return conflicts ? "User/Generation merge conflicts resolutions." : "Merge branch '" + GENERATION + "'";
+	}
+	
+	/**
+	 * <p>Stages resolved paths and commits them.</p>
+	 */
+	private void commitResolutions(Resolutions resolutions, String message) throws IOException, GitAPIException {
+		// stages resolved paths to allows commit.
+		if ( resolutions.added ) {
+			resolutions.add.setWorkingTreeIterator(new OutputTreeIterator(git.getRepository())).call();
+		}
+		if ( resolutions.removed ) resolutions.rm.call();
 
-			// resets repository state to allows commit.
-			reset.call();
-
-			// commit resolutions
-			git.commit().setMessage("User/Generation merge conflicts resolutions.").call();
-		}	
-		
-		// renames git repository to hannah
-		gitFolder.renameTo(hannahFolder);
+		// commit merge and resolutions
+		git.commit().setMessage(message).call();
 	}
 	
 	private List<Modification> createModificationList(List<DiffEntry> diffs) {
@@ -371,17 +1999,142 @@ public class IterativeFileGenerator {
 		return new Modification(diff);
 	}
 	
-	private RawText getRawText(DirCacheEntry entry) throws IOException {
-		return getRawText(entry.getObjectId());
+	/**
+	 * <p>Opens the blob for given id.</p>
+	 * @return the loader or null if id is missing.
+	 */
+	private ObjectLoader open(ObjectId id) throws IOException {
+		if ( id == null || ObjectId.zeroId().equals(id) ) {
+			return null;
+		}
+		return git.getRepository().open(id, Constants.OBJ_BLOB);
 	}
 	
-	private RawText getRawText(ObjectId id) throws IOException {
-		if ( ObjectId.zeroId().equals(id) ) {
-			return RawText.EMPTY_TEXT;
+	/**
+	 * <p>Checks if the blob is binary looking only at its first bytes.</p>
+	 */
+	private boolean isBinary(ObjectLoader loader) throws IOException {
+		if ( loader == null ) return false;
+		if ( isBig(loader) ) {
+			// only the first bytes are read, the blob isn't loaded in the heap
+			final InputStream stream = loader.openStream();
+			try {
+				return RawText.isBinary(stream);
+			} finally {
+				stream.close();
+			}
+		}
+		return RawText.isBinary(loader.getCachedBytes());
+	}
+	
+	/**
+	 * <p>Checks if the blob must be loaded outside of the heap.</p>
+	 */
+	private boolean isBig(ObjectLoader loader) {
+		return loader != null && (loader.isLarge() || loader.getSize() > bigFileThreshold);
+	}
+	
+	/**
+	 * <p>Checks if the blob can be mapped in one buffer.</p>
+	 */
+	private boolean isMappable(ObjectLoader loader) {
+		return loader == null || loader.getSize() <= Integer.MAX_VALUE;
+	}
+	
+	private byte[] getBytes(ObjectLoader loader) throws IOException {
+		if ( loader == null ) {
+			return new byte[0];
+		}
+		return loader.getCachedBytes();
+	}
+	
+	/**
+	 * <p>Comparator delegate which stops the merge when its thread is
+	 * interrupted.</p>
+	 */
+	private static class InterruptibleComparator extends SequenceComparator<RawText> {
+		
+		private final SequenceComparator<RawText> delegate;
+		
+		/** Calls count since last interruption check. */
+		private int calls = 0;
+		
+		InterruptibleComparator(SequenceComparator<RawText> delegate) {
+			this.delegate = delegate;
+		}
+		
+		private void check() {
+			if ( ++calls > 1024 ) {
+				calls = 0;
+				if ( Thread.currentThread().isInterrupted() ) {
+					throw new CancellationException("Merge budget exceeded.");
+				}
+			}
+		}
+		
+		@Override
+		public boolean equals(RawText a, int ai, RawText b, int bi) {
+			check();
+			return delegate.equals(a, ai, b, bi);
+		}
+		
+		@Override
+		public int hash(RawText seq, int ptr) {
+			check();
+			return delegate.hash(seq, ptr);
 		}
-		final ObjectLoader loader = git.getRepository().open(id, Constants.OBJ_BLOB);
-		return new RawText(loader.getCachedBytes());
+		
+		@Override
+		public Edit reduceCommonStartEnd(RawText a, RawText b, Edit e) {
+			return delegate.reduceCommonStartEnd(a, b, e);
+		}
+	}
+	
+	/**
+	 * <p>Merge state between {@link IterativeFileGenerator#mergeGeneration()}
+	 * and {@link IterativeFileGenerator#completeMerge()}.</p>
+	 */
+	private class PendingMerge {
+		
+		final Resolutions resolutions = new Resolutions();
+		
+		/** Conflicting files to resolve. */
+		final List<ConflictingFile> files = new ArrayList<ConflictingFile>();
+		
+		/** Entries of the conflicting files. */
+		final List<ConflictingEntry> entries = new ArrayList<ConflictingEntry>();
+		
+		/** Fingerprints of the files conflicts (if resolutions are remembered). */
+		final List<String[]> fingerprints = new ArrayList<String[]>();
+		
+		ResolutionCache cache;
+		
+		/** True if conflicts were resolved (by the handler or remembered). */
+		boolean conflicts = false;
 	}
 	
+	/**
+	 * <p>Paths to add and remove when committing conflicts resolutions.</p>
+	 */
+	private class Resolutions {
+		
+		final AddCommand add = git.add();
+		
+		final RmCommand rm = git.rm();
+		
+		boolean added = false;
+		
+		boolean removed = false;
+		
+		void add(String path) {
+			add.addFilepattern(path);
+			added = true;
+		}
+		
+		void remove(String path) {
+			rm.addFilepattern(path);
+			removed = true;
+		}
+	}
 	
 }
@@ -0,0 +1,225 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.eclipse.jgit.diff.RawText;
+import org.eclipse.jgit.diff.SequenceComparator;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.util.IntList;
+import org.eclipse.jgit.util.RawParseUtils;
+
+/**
+ * <p>A {@link MappedText} is a {@link RawText} which contents are kept in a
+ * {@link ByteBuffer} instead of a byte array. Large blobs are copied to a
+ * temporary file which is memory-mapped, only the line index stays in the
+ * heap.</p>
+ *
+ * <p>{@link MappedText}s must be compared using {@link #COMPARATOR},
+ * {@link org.eclipse.jgit.diff.RawTextComparator}s only work on byte
+ * arrays.</p>
+ *
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class MappedText extends RawText {
+
+	/** Exact comparator for {@link MappedText}s. */
+	public static final SequenceComparator<RawText> COMPARATOR = new SequenceComparator<RawText>() {
+
+		@Override
+		public boolean equals(RawText a, int ai, RawText b, int bi) {
+			final MappedText ma = (MappedText) a;
+			final MappedText mb = (MappedText) b;
+
+			final int aBegin = ma.lineBegin(ai);
+			final int aEnd = ma.lineEnd(ai);
+			final int bBegin = mb.lineBegin(bi);
+			if ( aEnd - aBegin != mb.lineEnd(bi) - bBegin ) return false;
+
+			for ( int i=0; i<aEnd-aBegin; i++ ) {
+				if ( ma.buffer.get(aBegin + i) != mb.buffer.get(bBegin + i) ) return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int hash(RawText seq, int ptr) {
+			final MappedText text = (MappedText) seq;
+			final int end = text.lineEnd(ptr);
+			int hash = 5381;
+			for ( int i=text.lineBegin(ptr); i<end; i++ ) {
+				hash = ((hash << 5) + hash) + (text.buffer.get(i) & 0xff);
+			}
+			return hash;
+		}
+	};
+
+	/** Empty contents. */
+	private static final byte[] NO_CONTENT = new byte[0];
+
+	/** Contents (only absolute get are used, buffer position is never changed). */
+	private final ByteBuffer buffer;
+
+	/** Start index of each line plus the end of the buffer. */
+	private final IntList lineStarts;
+
+	MappedText(ByteBuffer buffer) {
+		super(NO_CONTENT);
+		this.buffer = buffer;
+		this.lineStarts = computeLineStarts(buffer);
+	}
+
+	/**
+	 * <p>Creates a {@link MappedText} for a blob. If the blob size is below
+	 * the threshold the contents is wrapped from the heap, otherwise it's
+	 * copied to a temporary file and mapped.</p>
+	 * @param loader blob loader, null means empty contents.
+	 * @param threshold size above which the blob is mapped.
+	 */
+	static MappedText open(ObjectLoader loader, long threshold) throws IOException {
+		if ( loader == null ) {
+			return new MappedText(ByteBuffer.wrap(NO_CONTENT));
+		}
+		if ( loader.getSize() <= threshold && loader.isLarge() == false ) {
+			return new MappedText(ByteBuffer.wrap(loader.getCachedBytes()));
+		}
+
+		final File file = File.createTempFile("hannah", ".blob");
+		try {
+			final OutputStream out = new FileOutputStream(file);
+			final InputStream in = loader.openStream();
+			try {
+				final byte[] buffer = new byte[64 * 1024];
+				int read = in.read(buffer);
+				while ( read >= 0 ) {
+					out.write(buffer, 0, read);
+					read = in.read(buffer);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+
+			// the mapping stays valid once the channel is closed
+			final RandomAccessFile access = new RandomAccessFile(file, "r");
+			try {
+				final FileChannel channel = access.getChannel();
+				return new MappedText(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				access.close();
+			}
+		} finally {
+			// mapped files can't be deleted on some platforms
+			if ( file.delete() == false ) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private static IntList computeLineStarts(ByteBuffer buffer) {
+		final int length = buffer.limit();
+		final IntList starts = new IntList();
+		starts.add(0);
+		for ( int i=0; i<length; i++ ) {
+			if ( buffer.get(i) == '\n' ) {
+				starts.add(i+1);
+			}
+		}
+		if ( starts.get(starts.size()-1) != length ) {
+			starts.add(length);
+		}
+		return starts;
+	}
+
+	/** Index of the first byte of line. */
+	private int lineBegin(int line) {
+		return lineStarts.get(line);
+	}
+
+	/** Index after the last byte of line, line feed excluded. */
+	private int lineEnd(int line) {
+		final int end = lineStarts.get(line+1);
+		return end > 0 && buffer.get(end-1) == '\n' ? end-1 : end;
+	}
+
+	@Override
+	public int size() {
+		return lineStarts.size() - 1;
+	}
+
+	@Override
+	public void writeLine(OutputStream out, int line) throws IOException {
+		final int begin = lineBegin(line);
+		final int end = lineEnd(line);
+		final byte[] chunk = new byte[Math.min(end - begin, 8 * 1024)];
+		for ( int i=begin; i<end; i+=chunk.length ) {
+			final int length = Math.min(chunk.length, end-i);
+			for ( int j=0; j<length; j++ ) {
+				chunk[j] = buffer.get(i+j);
+			}
+			out.write(chunk, 0, length);
+		}
+	}
+
+	@Override
+	public boolean isMissingNewlineAtEnd() {
+		final int length = buffer.limit();
+		return length == 0 || buffer.get(length-1) != '\n';
+	}
+
+	@Override
+	public String getString(int line) {
+		return getString(line, line+1, true);
+	}
+
+	@Override
+	public String getString(int begin, int end, boolean dropLF) {
+		if ( begin == end ) return "";
+
+		final int start = lineBegin(begin);
+		final int stop = dropLF ? lineEnd(end-1) : lineStarts.get(end);
+		return decode(start, stop);
+	}
+
+	@Override
+	protected String decode(int start, int end) {
+		final byte[] bytes = new byte[end - start];
+		for ( int i=0; i<bytes.length; i++ ) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return RawParseUtils.decode(bytes);
+	}
+
+	@Override
+	public String getLineDelimiter() {
+		if ( size() == 0 ) return null;
+		final int end = lineEnd(0);
+		if ( end == lineStarts.get(1) ) return null;
+		return end > 0 && buffer.get(end-1) == '\r' ? "\r\n" : "\n";
+	}
+
+}
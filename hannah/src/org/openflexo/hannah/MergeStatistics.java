@@ -0,0 +1,113 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>{@link MergeStatistics} gives metrics about the merge of a generation
+ * cycle. They are available from the {@link IterativeFileGenerator} once
+ * the cycle is ended.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class MergeStatistics {
+
+	/** Number of files which contents were merged. */
+	private int mergedFiles = 0;
+	
+	/** Number of files given to the conflict handler. */
+	private int conflictingFiles = 0;
+	
+	/** Number of conflicting files resolved with remembered resolutions. */
+	private int rememberedFiles = 0;
+	
+	/** Time spent merging contents in nanoseconds. */
+	private long mergeTime = 0;
+	
+	/** Paths of files for which the merge exceeded the budget. */
+	private final List<String> budgetExceededFiles = new ArrayList<String>();
+	
+	void merged(long time) {
+		mergedFiles++;
+		mergeTime += time;
+	}
+	
+	void conflicting() {
+		conflictingFiles++;
+	}
+	
+	void remembered() {
+		rememberedFiles++;
+	}
+	
+	void budgetExceeded(String path, long time) {
+		mergeTime += time;
+		budgetExceededFiles.add(path);
+	}
+	
+	/** Number of files which contents were merged. */
+	public int getMergedFiles() {
+		return mergedFiles;
+	}
+	
+	/** Number of files given to the conflict handler. */
+	public int getConflictingFiles() {
+		return conflictingFiles;
+	}
+	
+	/** 
+	 * Number of conflicting files resolved with remembered resolutions, 
+	 * they weren't given to the conflict handler.
+	 */
+	public int getRememberedFiles() {
+		return rememberedFiles;
+	}
+	
+	/** Time spent merging contents in milliseconds. */
+	public long getMergeTime() {
+		return mergeTime / 1000000;
+	}
+	
+	/** 
+	 * Paths of files for which the merge exceeded the time budget, they
+	 * were presented as whole-file conflicts.
+	 */
+	public List<String> getBudgetExceededFiles() {
+		return Collections.unmodifiableList(budgetExceededFiles);
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder();
+		text.append("MergeStatistics[merged=");
+		text.append(mergedFiles);
+		text.append(",conflicting=");
+		text.append(conflictingFiles);
+		text.append(",remembered=");
+		text.append(rememberedFiles);
+		text.append(",time=");
+		text.append(getMergeTime());
+		text.append("ms,budgetExceeded=");
+		text.append(budgetExceededFiles);
+		text.append("]");
+		return text.toString();
+	}
+}
@@ -0,0 +1,304 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+
+/**
+ * <p>The {@link OutputSnapshot} materializes a commit in a snapshot folder
+ * for readers that must not see a generation in progress. Each commit is
+ * written in its own sub-folder named after the commit id, then the 
+ * {@link #CURRENT} symbolic link is switched to it with an atomic rename. 
+ * Readers going through the link always see a complete commit.</p>
+ * 
+ * <p>The previous snapshot is kept for readers still walking it. The one 
+ * before is recycled: it's renamed aside and only the paths that differ 
+ * between its commit and the new one are deleted or written, a snapshot 
+ * costs the files changed since then. Without a snapshot to recycle, all 
+ * files are written, unchanged ones being hard-linked from the previous 
+ * snapshot. Other snapshots are deleted. Changed files are replaced, never
+ * written in place, since snapshot files are shared between snapshots; 
+ * they must not be modified.</p>
+ * 
+ * <p>Where symbolic links can't be created (Windows without the privilege
+ * for instance), {@link #CURRENT} is a file containing the name of the 
+ * current snapshot, replaced atomically (see {@link #getSnapshot(File)}),
+ * and symbolic links of the commit are written as files containing their
+ * target, like Git does.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class OutputSnapshot {
+
+	/** Name of the link to the current snapshot. */
+	final static String CURRENT = "current";
+	
+	/** Tree indexes in the walk. */
+	private final static int NEW = 0;
+	private final static int PREVIOUS = 1;
+	
+	private final Repository repository;
+	
+	/** Folder containing the snapshots and the link. */
+	private final Path folder;
+	
+	/** Writer for changed files. */
+	private final OutputWriter writer;
+	
+	OutputSnapshot(Repository repository, File folder, OutputWriter writer) {
+		this.repository = repository;
+		this.folder = folder.toPath();
+		this.writer = writer;
+	}
+	
+	/**
+	 * @return the commit id of the current snapshot, null if there is none.
+	 */
+	String getCurrent() throws IOException {
+		return getCurrent(folder.resolve(CURRENT));
+	}
+	
+	private static String getCurrent(Path link) throws IOException {
+		if ( Files.isSymbolicLink(link) ) {
+			return Files.readSymbolicLink(link).getFileName().toString();
+		}
+		if ( Files.isRegularFile(link) ) {
+			// no symbolic link support, the file names the snapshot
+			return new String(Files.readAllBytes(link), "UTF-8").trim();
+		}
+		return null;
+	}
+	
+	/**
+	 * @param folder the snapshots folder.
+	 * @return the folder to read the current snapshot from: the 
+	 * {@link #CURRENT} link, or the snapshot itself without symbolic links.
+	 */
+	static File getSnapshot(File folder) {
+		final Path link = folder.toPath().resolve(CURRENT);
+		if ( Files.isRegularFile(link, LinkOption.NOFOLLOW_LINKS) ) {
+			try {
+				return new File(folder, getCurrent(link));
+			} catch (IOException e) {
+				// switched meanwhile, the link is returned
+			}
+		}
+		return link.toFile();
+	}
+	
+	/**
+	 * <p>Makes given commit the current snapshot. Nothing is done if it's 
+	 * already current.</p>
+	 * @param commitId the commit to materialize.
+	 */
+	void update(ObjectId commitId) throws IOException {
+		final String name = commitId.name();
+		final String previous = getCurrent();
+		if ( name.equals(previous) ) return;
+		
+		final Path target = folder.resolve(name);
+		if ( Files.exists(target) == false ) {
+			// writes aside then renames, a snapshot folder is always complete
+			final Path partial = folder.resolve(name + ".partial");
+			FileUtil.delete(partial.toFile());
+			final ObjectId recycled = recycle(partial, name, previous);
+			if ( recycled != null ) {
+				updateRecycled(recycled, commitId, partial);
+			} else {
+				Files.createDirectories(partial);
+				write(commitId, partial, previous == null ? null : folder.resolve(previous));
+			}
+			FileUtil.moveAtomically(partial, target);
+		}
+		
+		final Path link = folder.resolve(CURRENT + ".tmp");
+		Files.deleteIfExists(link);
+		if ( FileUtil.createSymbolicLink(link, Paths.get(name)) == false ) {
+			FileUtil.writeFile(link.toFile(), Constants.encode(name));
+		}
+		FileUtil.moveAtomically(link, folder.resolve(CURRENT));
+		
+		clean(name, previous);
+	}
+	
+	/**
+	 * <p>Renames a snapshot older than the previous one to partial.</p>
+	 * @return the commit of the recycled snapshot, null if there is none.
+	 */
+	private ObjectId recycle(Path partial, String current, String previous) throws IOException {
+		final File[] children = folder.toFile().listFiles();
+		if ( children == null ) return null;
+		for ( File child : children ) {
+			final String name = child.getName();
+			if ( name.equals(current) || name.equals(previous) || child.isDirectory() == false ) continue;
+			if ( Files.isSymbolicLink(child.toPath()) || ObjectId.isId(name) == false ) continue;
+			
+			final ObjectId commitId = ObjectId.fromString(name);
+			if ( repository.hasObject(commitId) == false ) continue;
+			FileUtil.moveAtomically(child.toPath(), partial);
+			return commitId;
+		}
+		return null;
+	}
+	
+	/**
+	 * <p>Updates destination, a snapshot of from, to the files of to. Only
+	 * the paths which differ are walked.</p>
+	 */
+	private void updateRecycled(ObjectId from, ObjectId to, Path destination) throws IOException {
+		final RevWalk revWalk = new RevWalk(repository);
+		final TreeWalk walk = new TreeWalk(repository);
+		try {
+			walk.addTree(revWalk.parseCommit(to).getTree());
+			walk.addTree(revWalk.parseCommit(from).getTree());
+			walk.setRecursive(true);
+			walk.setFilter(TreeFilter.ANY_DIFF);
+			
+			while ( walk.next() ) {
+				final FileMode mode = walk.getFileMode(NEW);
+				final Path file = destination.resolve(walk.getPathString());
+				// shared with other snapshots, replaced rather than written
+				FileUtil.delete(file.toFile());
+				if ( mode == FileMode.MISSING || mode == FileMode.GITLINK ) {
+					deleteEmptyFolders(file.getParent(), destination);
+				} else {
+					writeFile(file, mode, walk.getObjectId(NEW));
+				}
+			}
+		} finally {
+			walk.release();
+			revWalk.release();
+		}
+	}
+	
+	/** Deletes folder and its parents up to root as long as they're empty. */
+	private static void deleteEmptyFolders(Path folder, Path root) {
+		// a folder replaced by a file is left alone
+		while ( folder != null && folder.equals(root) == false && Files.isDirectory(folder, LinkOption.NOFOLLOW_LINKS) && folder.toFile().delete() ) {
+			folder = folder.getParent();
+		}
+	}
+	
+	/**
+	 * <p>Writes the files of a commit in destination, unchanged files are
+	 * linked from the previous snapshot.</p>
+	 */
+	private void write(ObjectId commitId, Path destination, Path previous) throws IOException {
+		final RevWalk revWalk = new RevWalk(repository);
+		final TreeWalk walk = new TreeWalk(repository);
+		try {
+			walk.addTree(revWalk.parseCommit(commitId).getTree());
+			if ( previous != null && Files.isDirectory(previous) ) {
+				walk.addTree(revWalk.parseCommit(ObjectId.fromString(previous.getFileName().toString())).getTree());
+			} else {
+				walk.addTree(new EmptyTreeIterator());
+				previous = null;
+			}
+			walk.setRecursive(true);
+			
+			while ( walk.next() ) {
+				final FileMode mode = walk.getFileMode(NEW);
+				if ( mode == FileMode.MISSING || mode == FileMode.GITLINK ) continue;
+				
+				final String path = walk.getPathString();
+				final Path file = destination.resolve(path);
+				if ( previous != null && mode == walk.getFileMode(PREVIOUS) && walk.idEqual(NEW, PREVIOUS) ) {
+					Files.createDirectories(file.getParent());
+					if ( link(file, previous.resolve(path)) ) continue;
+				}
+				writeFile(file, mode, walk.getObjectId(NEW));
+			}
+		} finally {
+			walk.release();
+			revWalk.release();
+		}
+	}
+	
+	/**
+	 * <p>Writes a blob, symbolic links are written as files containing 
+	 * their target if they aren't supported.</p>
+	 */
+	private void writeFile(Path file, FileMode mode, ObjectId blobId) throws IOException {
+		Files.createDirectories(file.getParent());
+		final ObjectLoader loader = repository.open(blobId, Constants.OBJ_BLOB);
+		if ( mode == FileMode.SYMLINK && FileUtil.createSymbolicLink(file, Paths.get(RawParseUtils.decode(loader.getCachedBytes()))) ) {
+			return;
+		}
+		
+		final AtomicOutputStream stream = writer.open(file.toFile());
+		try {
+			loader.copyTo(stream);
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+		if ( mode == FileMode.EXECUTABLE_FILE ) {
+			file.toFile().setExecutable(true);
+		}
+	}
+	
+	/**
+	 * <p>Hard-links file to the previous version.</p>
+	 * @return false if the file system doesn't support it, the file must 
+	 * then be written.
+	 */
+	private boolean link(Path file, Path existing) throws IOException {
+		if ( Files.isSymbolicLink(existing) ) {
+			return FileUtil.createSymbolicLink(file, Files.readSymbolicLink(existing));
+		}
+		try {
+			Files.createLink(file, existing);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	/** Deletes snapshots other than the current and previous ones. */
+	private void clean(String current, String previous) {
+		final File[] children = folder.toFile().listFiles();
+		if ( children == null ) return;
+		for ( File child : children ) {
+			final String name = child.getName();
+			if ( name.equals(CURRENT) || name.equals(current) || name.equals(previous) ) continue;
+			FileUtil.delete(child);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.FileTreeIterator.FileEntry;
+import org.eclipse.jgit.treewalk.WorkingTreeIterator;
+import org.eclipse.jgit.treewalk.WorkingTreeOptions;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * <p>The {@link OutputTreeIterator} walks the output folder like the
+ * {@link org.eclipse.jgit.treewalk.FileTreeIterator} but symbolic links
+ * aren't followed: they're entries with the {@link FileMode#SYMLINK} mode
+ * and their target as contents, the way they're committed.</p>
+ *
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class OutputTreeIterator extends WorkingTreeIterator {
+
+	private final File directory;
+
+	private final FS fs;
+
+	OutputTreeIterator(Repository repository) throws IOException {
+		super(repository.getConfig().get(WorkingTreeOptions.KEY));
+		this.directory = repository.getWorkTree();
+		this.fs = repository.getFS();
+		initRootIterator(repository);
+		init(entries());
+	}
+
+	private OutputTreeIterator(OutputTreeIterator parent, File directory) throws IOException {
+		super(parent);
+		this.directory = directory;
+		this.fs = parent.fs;
+		init(entries());
+	}
+
+	@Override
+	public AbstractTreeIterator createSubtreeIterator(ObjectReader reader) throws IOException {
+		return new OutputTreeIterator(this, ((FileEntry) current()).getFile());
+	}
+
+	/** The id of links is computed here, JGit doesn't know links. */
+	@Override
+	public byte[] idBuffer() {
+		if ( current() instanceof LinkEntry ) {
+			return ((LinkEntry) current()).getId();
+		}
+		return super.idBuffer();
+	}
+	
+	@Override
+	public int idOffset() {
+		if ( current() instanceof LinkEntry ) return 0;
+		return super.idOffset();
+	}
+
+	private Entry[] entries() throws IOException {
+		final File[] files = directory.listFiles();
+		if ( files == null ) return EOF;
+		final Entry[] entries = new Entry[files.length];
+		for ( int i = 0; i < files.length; i++ ) {
+			final Path path = files[i].toPath();
+			if ( Files.isSymbolicLink(path) ) {
+				entries[i] = new LinkEntry(path);
+			} else {
+				entries[i] = new FileEntry(files[i], fs);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return the target of the link as stored in a blob.
+	 */
+	static byte[] readLink(Path link) throws IOException {
+		return Constants.encode(Files.readSymbolicLink(link).toString().replace(File.separatorChar, '/'));
+	}
+
+	private static class LinkEntry extends Entry {
+
+		private final String name;
+
+		private final byte[] target;
+
+		private final long lastModified;
+
+		private byte[] id;
+
+		LinkEntry(Path link) throws IOException {
+			this.name = link.getFileName().toString();
+			this.target = readLink(link);
+			this.lastModified = Files.getLastModifiedTime(link, LinkOption.NOFOLLOW_LINKS).toMillis();
+		}
+
+		@Override
+		public FileMode getMode() {
+			return FileMode.SYMLINK;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public long getLength() {
+			return target.length;
+		}
+
+		@Override
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public InputStream openInputStream() {
+			return new ByteArrayInputStream(target);
+		}
+
+		byte[] getId() {
+			if ( id == null ) {
+				id = new byte[Constants.OBJECT_ID_LENGTH];
+				new ObjectInserter.Formatter().idFor(Constants.OBJ_BLOB, target).copyRawTo(id, 0);
+			}
+			return id;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>The {@link OutputWatcher} watches an output folder with a 
+ * {@link WatchService} and keeps the set of paths modified since last 
+ * drain. Created folders are watched as soon as they're seen and are 
+ * recorded as modified as a whole.</p>
+ * 
+ * <p>When events are lost (overflow or a folder which can't be watched),
+ * the modified paths are unknown until the next drain, which then returns 
+ * null to ask a full scan.</p>
+ * 
+ * <p>Events are delivered after the fact: to know that all modifications
+ * made until now are recorded, a sync file is created and its event is 
+ * waited for (the watch service delivers events in order). Drains start 
+ * with such a sync, a modification made before a cycle starts is always 
+ * given to it.</p>
+ * 
+ * <p>Paths are recorded during generation cycles too. At the end of a 
+ * cycle, the paths written by the generator (and their folders) are 
+ * forgotten once their events are synced: they aren't user 
+ * modifications. Other paths changed during the cycle are given to the 
+ * next one, except files created and deleted meanwhile (like temporary 
+ * files of Git or of the {@link OutputWriter}). Files found in created 
+ * folders are recorded one by one.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class OutputWatcher implements Closeable, Runnable {
+
+	/** Prefix of the files created at root to sync events. */
+	final static String SYNC_PREFIX = ".hannah-sync-";
+	
+	/** Time to wait for a sync event in milliseconds. */
+	final static long SYNC_TIMEOUT = 10000;
+
+	private final Path root;
+	
+	/** Folder name to ignore at root (the repository). */
+	private final String ignored;
+	
+	private final WatchService service;
+	
+	/** Watched folders (only used by the watching thread once started). */
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	
+	/** Paths modified since last drain, true if the first event was a creation. */
+	private final Map<String, Boolean> modified = new HashMap<String, Boolean>();
+	
+	/** True if events were lost since last drain, first drain is always a full scan. */
+	private boolean overflow = true;
+	
+	/** Number of the last sync file created. */
+	private long syncRequested = 0;
+	
+	/** Number of the last sync file seen. */
+	private long syncSeen = 0;
+	
+	OutputWatcher(Path root, String ignored) throws IOException {
+		this.root = root;
+		this.ignored = ignored;
+		this.service = FileSystems.getDefault().newWatchService();
+		register(root);
+	}
+	
+	/**
+	 * <p>Returns the paths modified since last call and forgets them, 
+	 * events of modifications made before the call are waited for.</p>
+	 * @return modified paths or null if they're unknown.
+	 */
+	Collection<String> drain() throws IOException, InterruptedException {
+		final boolean synced = sync();
+		synchronized (this) {
+			final Collection<String> result = overflow || synced == false ? null : new ArrayList<String>(modified.keySet());
+			overflow = false;
+			modified.clear();
+			return result;
+		}
+	}
+	
+	/**
+	 * <p>Forgets paths written by the generator once their events are 
+	 * seen, with the folders containing them, and files created then 
+	 * deleted. If the events can't be synced, next drain asks a full 
+	 * scan.</p>
+	 * @param written paths relative to the root.
+	 */
+	void forget(Collection<String> written) throws IOException, InterruptedException {
+		if ( sync() == false ) {
+			overflowed();
+			return;
+		}
+		synchronized (this) {
+			final Iterator<Map.Entry<String, Boolean>> entries = modified.entrySet().iterator();
+			while ( entries.hasNext() ) {
+				final Map.Entry<String, Boolean> entry = entries.next();
+				if ( entry.getValue() && Files.exists(root.resolve(entry.getKey()), LinkOption.NOFOLLOW_LINKS) == false ) {
+					entries.remove();
+				}
+			}
+			for ( String path : written ) {
+				modified.remove(path);
+				// folders created for the file
+				for ( int index = path.lastIndexOf('/'); index > 0; index = path.lastIndexOf('/', index - 1) ) {
+					modified.remove(path.substring(0, index));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * <p>Creates a sync file and waits for its event, events of earlier 
+	 * modifications are then recorded.</p>
+	 * @return false if the event wasn't seen in time.
+	 */
+	private boolean sync() throws IOException, InterruptedException {
+		final long number;
+		synchronized (this) {
+			number = ++syncRequested;
+		}
+		final Path sync = root.resolve(SYNC_PREFIX + number);
+		Files.deleteIfExists(sync);
+		Files.createFile(sync);
+		Files.delete(sync);
+		
+		synchronized (this) {
+			final long end = System.currentTimeMillis() + SYNC_TIMEOUT;
+			while ( syncSeen < number ) {
+				final long remaining = end - System.currentTimeMillis();
+				if ( remaining <= 0 ) return false;
+				wait(remaining);
+			}
+			return true;
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while ( true ) {
+				final WatchKey key = service.take();
+				final Path folder = keys.get(key);
+				for ( final WatchEvent<?> event : key.pollEvents() ) {
+					if ( event.kind() == StandardWatchEventKinds.OVERFLOW || folder == null ) {
+						overflowed();
+						continue;
+					}
+					
+					final Path path = folder.resolve((Path) event.context());
+					final String relative = relativize(path);
+					if ( relative == null ) continue;
+					if ( relative.startsWith(SYNC_PREFIX) ) {
+						if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE ) synced(relative);
+						continue;
+					}
+					if ( FileUtil.isTemporaryFile(path.getFileName().toString()) ) continue;
+					
+					if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path) ) {
+						// files may be created before the folder is watched
+						try {
+							register(path);
+						} catch (IOException e) {
+							overflowed();
+						}
+					}
+					modified(relative, event.kind() == StandardWatchEventKinds.ENTRY_CREATE);
+				}
+				
+				if ( key.reset() == false ) {
+					// folder deleted
+					keys.remove(key);
+				}
+			}
+		} catch (InterruptedException e) {
+			// stops watching
+		} catch (ClosedWatchServiceException e) {
+			// stops watching
+		}
+	}
+	
+	private synchronized void modified(String path, boolean created) {
+		if ( modified.containsKey(path) == false ) {
+			modified.put(path, created);
+		}
+	}
+	
+	private synchronized void synced(String filename) {
+		try {
+			syncSeen = Math.max(syncSeen, Long.parseLong(filename.substring(SYNC_PREFIX.length())));
+			notifyAll();
+		} catch (NumberFormatException e) {
+			// not a sync file
+		}
+	}
+	
+	private synchronized void overflowed() {
+		overflow = true;
+	}
+	
+	/**
+	 * <p>Forgets modified paths, next drain asks a full scan.</p>
+	 */
+	void invalidate() {
+		overflowed();
+	}
+	
+	/** Relative path using '/', null for ignored paths. */
+	private String relativize(Path path) {
+		final Path relative = root.relativize(path);
+		if ( relative.getNameCount() == 0 ) return null;
+		if ( relative.getName(0).toString().equals(ignored) ) return null;
+		
+		final StringBuilder name = new StringBuilder();
+		for ( Path part : relative ) {
+			if ( name.length() > 0 ) name.append('/');
+			name.append(part.toString());
+		}
+		return name.toString();
+	}
+	
+	/** Watches folder and its sub-folders, files found in a created folder are recorded. */
+	private void register(final Path folder) throws IOException {
+		Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				final String relative = relativize(file);
+				if ( folder.equals(root) == false && relative != null && FileUtil.isTemporaryFile(file.getFileName().toString()) == false ) {
+					modified(relative, true);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				if ( dir.equals(root) == false && relativize(dir) == null ) {
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				final WatchKey key = dir.register(service, 
+						StandardWatchEventKinds.ENTRY_CREATE, 
+						StandardWatchEventKinds.ENTRY_DELETE, 
+						StandardWatchEventKinds.ENTRY_MODIFY
+					);
+				keys.put(key, dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+	
+	@Override
+	public void close() throws IOException {
+		service.close();
+	}
+}
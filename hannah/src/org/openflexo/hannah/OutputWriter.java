@@ -0,0 +1,399 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>The {@link OutputWriter} writes generation output files. Each file is
+ * written to a temporary file in its destination folder, then renamed 
+ * atomically over the destination: a reader never sees a partially written
+ * file. Missing parent folders are created.</p>
+ * 
+ * <p>The {@link Durability} tells when written files are forced to the
+ * storage device. With {@link Durability#BATCH}, written files are 
+ * remembered and forced all together by {@link #sync()}.</p>
+ * 
+ * <p>Writes don't allocate buffers: text is encoded with a reused 
+ * {@link CharsetEncoder} in a pooled direct {@link ByteBuffer} which feeds
+ * the file channel, charsets are looked up once. Buffers are pooled for all
+ * writers and can be used from many threads.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class OutputWriter {
+
+	/**
+	 * <p>Tells when written files are forced to the storage device.</p>
+	 */
+	public enum Durability {
+		/** Files are never forced, the system flushes them when it wants. */
+		NONE,
+		/** Files are forced all together at the end of the generation. */
+		BATCH,
+		/** Each file is forced before being renamed to its destination. */
+		FILE
+	}
+	
+	/** Size of pooled buffers. */
+	private final static int BUFFER_SIZE = 64 * 1024;
+	
+	/** Charsets by encoding name. */
+	private final static ConcurrentHashMap<String, Charset> charsets = new ConcurrentHashMap<String, Charset>();
+	
+	/** Buffers not in use. */
+	private final static Queue<Buffers> pool = new ConcurrentLinkedQueue<Buffers>();
+	
+	private final Durability durability;
+	
+	/** Files and folders to force on next sync (only for batch). */
+	private final Set<Path> pending = new LinkedHashSet<Path>();
+	
+	/** Files written since recording started, null if not recording. */
+	private Set<Path> written;
+	
+	public OutputWriter(Durability durability) {
+		this.durability = durability;
+	}
+	
+	public Durability getDurability() {
+		return durability;
+	}
+	
+	/** Writes given binary contents to destination file. */
+	public void write(File destinationFile, byte[] contents) throws IOException {
+		final Path target = destinationFile.toPath();
+		final Path temporary = FileUtil.createTemporaryFile(target);
+		try {
+			final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+			try {
+				final ByteBuffer buffer = ByteBuffer.wrap(contents);
+				while ( buffer.hasRemaining() ) {
+					channel.write(buffer);
+				}
+				if ( durability == Durability.FILE ) {
+					channel.force(true);
+				}
+			} finally {
+				channel.close();
+			}
+			commit(temporary, target);
+		} finally {
+			// nothing to delete once renamed
+			Files.deleteIfExists(temporary);
+		}
+	}
+	
+	/** 
+	 * Writes given contents to destination file. Characters which can't be
+	 * encoded are replaced, like {@link String#getBytes(String)} does.
+	 */
+	public void write(File destinationFile, String contents, String encoding) throws IOException {
+		final Charset charset = getCharset(encoding);
+		final Path target = destinationFile.toPath();
+		final Path temporary = FileUtil.createTemporaryFile(target);
+		final Buffers buffers = borrow();
+		try {
+			final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+			try {
+				final CharsetEncoder encoder = buffers.getEncoder(charset);
+				final CharBuffer in = CharBuffer.wrap(contents);
+				final ByteBuffer out = buffers.buffer;
+				CoderResult result = encoder.encode(in, out, true);
+				while ( result.isOverflow() ) {
+					drain(channel, out);
+					result = encoder.encode(in, out, true);
+				}
+				result = encoder.flush(out);
+				while ( result.isOverflow() ) {
+					drain(channel, out);
+					result = encoder.flush(out);
+				}
+				drain(channel, out);
+				if ( durability == Durability.FILE ) {
+					channel.force(true);
+				}
+			} finally {
+				channel.close();
+			}
+			commit(temporary, target);
+		} finally {
+			release(buffers);
+			Files.deleteIfExists(temporary);
+		}
+	}
+	
+	/**
+	 * <p>Gives the charset for an encoding name, charsets are cached.</p>
+	 * @throws UnsupportedEncodingException if the encoding isn't supported.
+	 */
+	static Charset getCharset(String encoding) throws UnsupportedEncodingException {
+		Charset charset = charsets.get(encoding);
+		if ( charset == null ) {
+			try {
+				charset = Charset.forName(encoding);
+			} catch (UnsupportedCharsetException e) {
+				throw new UnsupportedEncodingException(encoding);
+			} catch (IllegalCharsetNameException e) {
+				throw new UnsupportedEncodingException(encoding);
+			}
+			charsets.put(encoding, charset);
+		}
+		return charset;
+	}
+	
+	/** Writes the buffer contents to the channel and clears it. */
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while ( buffer.hasRemaining() ) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/** Takes buffers from the pool, or creates them if none is free. */
+	private static Buffers borrow() {
+		final Buffers buffers = pool.poll();
+		return buffers != null ? buffers : new Buffers();
+	}
+	
+	/** Gives buffers back to the pool. */
+	private static void release(Buffers buffers) {
+		buffers.buffer.clear();
+		pool.offer(buffers);
+	}
+	
+	/**
+	 * <p>Opens a stream to write destination file. The destination file is
+	 * replaced when {@link AtomicOutputStream#commit()} is called, closing
+	 * the stream without commit leaves it untouched.</p>
+	 * @param destinationFile file to write.
+	 * @return a buffered stream, it must be closed.
+	 */
+	public AtomicOutputStream open(File destinationFile) throws IOException {
+		final Path target = destinationFile.toPath();
+		final Path temporary = FileUtil.createTemporaryFile(target);
+		return new AtomicOutputStream(temporary, target);
+	}
+	
+	/**
+	 * <p>Starts recording the written files, the previous ones are 
+	 * forgotten.</p>
+	 */
+	synchronized void startRecording() {
+		written = new HashSet<Path>();
+	}
+	
+	/**
+	 * @return the files written since recording started, empty if not 
+	 * recording.
+	 */
+	synchronized Set<Path> getWritten() {
+		return written == null ? Collections.<Path>emptySet() : new HashSet<Path>(written);
+	}
+	
+	private synchronized void recordWritten(Path target) {
+		if ( written != null ) written.add(target);
+	}
+	
+	/**
+	 * <p>Forces all files written since last sync and their folders. Only 
+	 * does something with {@link Durability#BATCH}.</p>
+	 */
+	public void sync() throws IOException {
+		try {
+			for ( final Path path : pending ) {
+				FileUtil.force(path);
+			}
+		} finally {
+			pending.clear();
+		}
+	}
+	
+	/** Renames temporary file to target, keeping target permissions, and records what to force. */
+	private void commit(Path temporary, Path target) throws IOException {
+		FileUtil.copyPermissions(target, temporary);
+		FileUtil.moveAtomically(temporary, target);
+		recordWritten(target);
+		switch (durability) {
+		case FILE:
+			// the rename is durable once the folder is forced
+			FileUtil.force(target.getParent());
+			break;
+		case BATCH:
+			pending.add(target);
+			pending.add(target.getParent());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * <p>Stream writing to a temporary file through a buffer, the temporary
+	 * file replaces the target on {@link #commit()}. A stream closed 
+	 * without commit (for instance when writing failed) only deletes the 
+	 * temporary file. It will look like this:
+	 * <pre><code>
+	 * final AtomicOutputStream stream = writer.open(file);
+	 * try {
+	 *     ... writes contents ...
+	 *     stream.commit();
+	 * } finally {
+	 *     stream.close();
+	 * }
+	 * </code></pre>
+	 * </p>
+	 */
+	public class AtomicOutputStream extends OutputStream {
+		
+		private final Path temporary;
+		
+		private final Path target;
+		
+		private final FileChannel channel;
+		
+		private final Buffers buffers;
+		
+		private final ByteBuffer buffer;
+		
+		private boolean closed = false;
+		
+		AtomicOutputStream(Path temporary, Path target) throws IOException {
+			this.temporary = temporary;
+			this.target = target;
+			this.channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+			this.buffers = borrow();
+			this.buffer = buffers.buffer;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			checkOpen();
+			if ( buffer.hasRemaining() == false ) drain();
+			buffer.put((byte) b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkOpen();
+			while ( len > 0 ) {
+				if ( buffer.hasRemaining() == false ) drain();
+				final int length = Math.min(len, buffer.remaining());
+				buffer.put(b, off, length);
+				off += length;
+				len -= length;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			checkOpen();
+			drain();
+		}
+		
+		/** The buffer goes back to the pool once closed. */
+		private void checkOpen() throws IOException {
+			if ( closed ) throw new IOException("Stream is closed.");
+		}
+		
+		private void drain() throws IOException {
+			OutputWriter.drain(channel, buffer);
+		}
+		
+		/**
+		 * <p>Replaces the target with the written contents and closes the
+		 * stream.</p>
+		 */
+		public void commit() throws IOException {
+			checkOpen();
+			closed = true;
+			try {
+				drain();
+				if ( durability == Durability.FILE ) {
+					channel.force(true);
+				}
+				channel.close();
+				OutputWriter.this.commit(temporary, target);
+			} finally {
+				channel.close();
+				release(buffers);
+				Files.deleteIfExists(temporary);
+			}
+		}
+		
+		/**
+		 * <p>Closes the stream, the target is replaced only if 
+		 * {@link #commit()} was called.</p>
+		 */
+		@Override
+		public void close() throws IOException {
+			if ( closed ) return;
+			closed = true;
+			try {
+				channel.close();
+			} finally {
+				release(buffers);
+				Files.deleteIfExists(temporary);
+			}
+		}
+	}
+	
+	/**
+	 * <p>A direct buffer with the last used encoder.</p>
+	 */
+	private static class Buffers {
+		
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		
+		private CharsetEncoder encoder;
+		
+		/** Gives a reset encoder for charset, reused if charset didn't change. */
+		CharsetEncoder getEncoder(Charset charset) {
+			if ( encoder == null || encoder.charset().equals(charset) == false ) {
+				encoder = charset.newEncoder();
+				encoder.onMalformedInput(CodingErrorAction.REPLACE);
+				encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			}
+			encoder.reset();
+			return encoder;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Collection;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEditor.DeletePath;
+import org.eclipse.jgit.dircache.DirCacheEditor.PathEdit;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.ObjectDirectory;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * <p>The {@link PackCommitter} commits working tree files like the add, rm
+ * and commit commands, but blobs, trees and the commit are written in one 
+ * pack using a {@link PackInserter}. The index is updated once the pack is
+ * in the object database, then the head is moved to the new commit.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class PackCommitter {
+
+	private final Repository repository;
+	
+	PackCommitter(Repository repository) {
+		this.repository = repository;
+	}
+	
+	/**
+	 * <p>Commits given paths on the current branch.</p>
+	 * @param added paths to add from the working tree.
+	 * @param removed paths to remove from the index.
+	 * @param message commit message.
+	 * @return the commit id.
+	 */
+	ObjectId commit(Collection<String> added, Collection<String> removed, String message) throws IOException {
+		final DirCache cache = repository.lockDirCache();
+		final PackInserter inserter = new PackInserter((ObjectDirectory) repository.getObjectDatabase());
+		try {
+			final DirCacheEditor editor = cache.editor();
+			for ( String path : added ) {
+				final File file = new File(repository.getWorkTree(), path);
+				if ( Files.isSymbolicLink(file.toPath()) ) {
+					editor.add(insertLink(inserter, path, file.toPath()));
+					continue;
+				}
+				if ( file.isFile() == false ) continue;
+				editor.add(insert(inserter, path, file));
+			}
+			for ( String path : removed ) {
+				editor.add(new DeletePath(path));
+			}
+			editor.finish();
+			
+			final ObjectId head = repository.resolve(Constants.HEAD);
+			final PersonIdent person = new PersonIdent(repository);
+			final CommitBuilder commit = new CommitBuilder();
+			commit.setTreeId(cache.writeTree(inserter));
+			if ( head != null ) {
+				commit.setParentId(head);
+			}
+			commit.setAuthor(person);
+			commit.setCommitter(person);
+			commit.setMessage(message);
+			final ObjectId commitId = inserter.insert(commit);
+			inserter.flush();
+			
+			// objects are readable, the index and the head can use them
+			cache.write();
+			if ( cache.commit() == false ) {
+				throw new IOException("Can't write index of '"+ repository.getDirectory() +"'.");
+			}
+			
+			final RefUpdate update = repository.updateRef(Constants.HEAD);
+			update.setNewObjectId(commitId);
+			update.setExpectedOldObjectId(head != null ? head : ObjectId.zeroId());
+			update.setRefLogMessage("commit: " + message, false);
+			final RefUpdate.Result result = update.update();
+			if ( result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD ) {
+				throw new IOException("Can't commit '"+ message +"': " + result);
+			}
+			return commitId;
+			
+		} finally {
+			inserter.release();
+			cache.unlock();
+		}
+	}
+	
+	/** Inserts the file blob and creates the index edit for it. */
+	private PathEdit insert(PackInserter inserter, String path, File file) throws IOException {
+		final long length = file.length();
+		final long lastModified = file.lastModified();
+		final InputStream stream = new FileInputStream(file);
+		final ObjectId id;
+		try {
+			id = inserter.insert(Constants.OBJ_BLOB, length, stream);
+		} finally {
+			stream.close();
+		}
+		
+		final FS fs = repository.getFS();
+		final FileMode mode = fs.supportsExecute() && fs.canExecute(file) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+		return edit(path, mode, id, length, lastModified);
+	}
+	
+	/** 
+	 * Inserts the link target as blob and creates the index edit for it, the
+	 * link itself isn't followed.
+	 */
+	private PathEdit insertLink(PackInserter inserter, String path, Path link) throws IOException {
+		final byte[] target = OutputTreeIterator.readLink(link);
+		final long lastModified = Files.getLastModifiedTime(link, LinkOption.NOFOLLOW_LINKS).toMillis();
+		final ObjectId id = inserter.insert(Constants.OBJ_BLOB, target);
+		return edit(path, FileMode.SYMLINK, id, target.length, lastModified);
+	}
+	
+	private PathEdit edit(String path, final FileMode mode, final ObjectId id, final long length, final long lastModified) {
+		return new PathEdit(path) {
+			@Override
+			public void apply(DirCacheEntry entry) {
+				entry.setFileMode(mode);
+				entry.setObjectId(id);
+				entry.setLength(length);
+				entry.setLastModified(lastModified);
+			}
+		};
+	}
+}
@@ -0,0 +1,313 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.storage.file.ObjectDirectory;
+import org.eclipse.jgit.storage.file.PackIndexWriter;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+
+/**
+ * <p>A {@link PackInserter} writes all inserted objects in one pack file
+ * instead of one loose object per file. Objects are deflated and appended
+ * to a temporary pack as they're inserted, the pack and its index are moved
+ * to the object database when flushed. Inserting thousands of objects then 
+ * costs a few sequential writes.</p>
+ * 
+ * <p>Objects aren't readable before the flush. Objects already present in 
+ * the object database or in the pack aren't written again.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class PackInserter extends ObjectInserter {
+
+	/** Pack header: signature, version, objects count (set on flush). */
+	private final static byte[] HEADER = { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 };
+	
+	private final ObjectDirectory database;
+	
+	/** Objects written in the pending pack. */
+	private final ObjectIdOwnerMap<PackedObjectInfo> objects = new ObjectIdOwnerMap<PackedObjectInfo>();
+	
+	/** Buffer for the pack channel. */
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	
+	/** Checksum of the current object. */
+	private final CRC32 crc = new CRC32();
+	
+	private Deflater deflater;
+	
+	/** Temporary pack file, null if no object was written. */
+	private File packFile;
+	
+	private RandomAccessFile pack;
+	
+	private FileChannel channel;
+	
+	/** Position after the last byte written (buffered bytes included). */
+	private long position;
+	
+	PackInserter(ObjectDirectory database) {
+		this.database = database;
+	}
+	
+	@Override
+	public ObjectId insert(int type, long length, InputStream in) throws IOException {
+		if ( packFile == null ) {
+			begin();
+		}
+		
+		final MessageDigest digest = digest();
+		digest.update(Constants.encodedTypeString(type));
+		digest.update((byte) ' ');
+		digest.update(Constants.encodeASCII(length));
+		digest.update((byte) 0);
+		
+		final long offset = position;
+		crc.reset();
+		writeHeader(type, length);
+		
+		// deflates contents while computing the id
+		final byte[] read = buffer();
+		final byte[] deflated = new byte[read.length];
+		deflater.reset();
+		long remaining = length;
+		while ( remaining > 0 ) {
+			final int count = in.read(read, 0, (int) Math.min(read.length, remaining));
+			if ( count < 0 ) {
+				throw new IOException("Stream ended before " + length + " bytes.");
+			}
+			digest.update(read, 0, count);
+			deflater.setInput(read, 0, count);
+			while ( deflater.needsInput() == false ) {
+				write(deflated, 0, deflater.deflate(deflated));
+			}
+			remaining -= count;
+		}
+		deflater.finish();
+		while ( deflater.finished() == false ) {
+			write(deflated, 0, deflater.deflate(deflated));
+		}
+		
+		final ObjectId id = ObjectId.fromRaw(digest.digest());
+		if ( objects.contains(id) || database.has(id) ) {
+			// already stored, forgets the written bytes
+			rollback(offset);
+			return id;
+		}
+		
+		final PackedObjectInfo info = new PackedObjectInfo(id);
+		info.setOffset(offset);
+		info.setCRC((int) crc.getValue());
+		objects.add(info);
+		return id;
+	}
+	
+	/** Writes the type and the size of an object, as a variable length integer. */
+	private void writeHeader(int type, long length) throws IOException {
+		final byte[] header = new byte[16];
+		int count = 0;
+		long remaining = length >>> 4;
+		header[count++] = (byte) ((remaining > 0 ? 0x80 : 0) | (type << 4) | (length & 0x0F));
+		while ( remaining > 0 ) {
+			final int bits = (int) (remaining & 0x7F);
+			remaining >>>= 7;
+			header[count++] = (byte) ((remaining > 0 ? 0x80 : 0) | bits);
+		}
+		write(header, 0, count);
+	}
+	
+	/**
+	 * <p>Received packs are parsed by the object database directly, they 
+	 * don't go through the pending pack.</p>
+	 */
+	@Override
+	public PackParser newPackParser(InputStream in) throws IOException {
+		final ObjectInserter inserter = database.newInserter();
+		try {
+			return inserter.newPackParser(in);
+		} finally {
+			inserter.release();
+		}
+	}
+	
+	/**
+	 * <p>Completes the pending pack, writes its index and moves both to the
+	 * object database.</p>
+	 */
+	@Override
+	public void flush() throws IOException {
+		if ( packFile == null ) return;
+		if ( objects.isEmpty() ) {
+			release();
+			return;
+		}
+		
+		final List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>(objects.size());
+		for ( PackedObjectInfo info : objects ) {
+			list.add(info);
+		}
+		Collections.sort(list);
+		
+		// sets the objects count and appends the pack checksum
+		drain();
+		pack.seek(8);
+		pack.writeInt(list.size());
+		final byte[] checksum = computeChecksum();
+		pack.seek(position);
+		pack.write(checksum);
+		channel.force(false);
+		pack.close();
+		pack = null;
+		
+		// names the pack after the objects it contains
+		final MessageDigest digest = digest();
+		for ( PackedObjectInfo info : list ) {
+			info.copyRawTo(buffer(), 0);
+			digest.update(buffer(), 0, Constants.OBJECT_ID_LENGTH);
+		}
+		final String name = "pack-" + ObjectId.fromRaw(digest.digest()).name();
+		
+		final File packFolder = packFile.getParentFile();
+		final File indexFile = new File(packFolder, packFile.getName().replace(".pack", ".idx"));
+		final OutputStream indexStream = new FileOutputStream(indexFile);
+		try {
+			PackIndexWriter.createVersion(indexStream, 2).write(list, checksum);
+			indexStream.flush();
+		} finally {
+			indexStream.close();
+		}
+		
+		final File finalPack = new File(packFolder, name + ".pack");
+		final File finalIndex = new File(packFolder, name + ".idx");
+		packFile.setReadOnly();
+		indexFile.setReadOnly();
+		// the index is moved last, a pack is only used with its index
+		FileUtil.moveAtomically(packFile.toPath(), finalPack.toPath());
+		FileUtil.moveAtomically(indexFile.toPath(), finalIndex.toPath());
+		database.openPack(finalPack, finalIndex);
+		
+		packFile = null;
+		objects.clear();
+	}
+	
+	/** Reads the pack back to compute its checksum. */
+	private byte[] computeChecksum() throws IOException {
+		final MessageDigest digest = digest();
+		final byte[] read = buffer();
+		pack.seek(0);
+		long remaining = position;
+		while ( remaining > 0 ) {
+			final int count = pack.read(read, 0, (int) Math.min(read.length, remaining));
+			if ( count < 0 ) throw new IOException("Pack '"+ packFile +"' is truncated.");
+			digest.update(read, 0, count);
+			remaining -= count;
+		}
+		return digest.digest();
+	}
+	
+	/**
+	 * <p>Deletes the pending pack if it wasn't flushed.</p>
+	 */
+	@Override
+	public void release() {
+		if ( deflater != null ) {
+			deflater.end();
+			deflater = null;
+		}
+		if ( pack != null ) {
+			try {
+				pack.close();
+			} catch (IOException e) {
+				// the file is deleted anyway
+			}
+			pack = null;
+		}
+		if ( packFile != null ) {
+			FileUtil.delete(packFile);
+			packFile = null;
+		}
+		objects.clear();
+	}
+	
+	/** Creates the temporary pack in the pack folder (to be renamed later). */
+	private void begin() throws IOException {
+		final File packFolder = new File(database.getDirectory(), "pack");
+		if ( packFolder.isDirectory() == false && packFolder.mkdirs() == false ) {
+			throw new IOException("Can't create folder '"+ packFolder +"'.");
+		}
+		packFile = File.createTempFile("incoming_", ".pack", packFolder);
+		pack = new RandomAccessFile(packFile, "rw");
+		channel = pack.getChannel();
+		if ( deflater == null ) {
+			deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		}
+		buffer.clear();
+		position = 0;
+		write(HEADER, 0, HEADER.length);
+	}
+	
+	/** Appends bytes to the pack, object bytes are added to the checksum. */
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		crc.update(bytes, offset, length);
+		position += length;
+		while ( length > 0 ) {
+			if ( buffer.hasRemaining() == false ) drain();
+			final int count = Math.min(length, buffer.remaining());
+			buffer.put(bytes, offset, count);
+			offset += count;
+			length -= count;
+		}
+	}
+	
+	/** Writes buffered bytes to the channel. */
+	private void drain() throws IOException {
+		buffer.flip();
+		while ( buffer.hasRemaining() ) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/** Forgets the bytes written after given offset. */
+	private void rollback(long offset) throws IOException {
+		drain();
+		channel.truncate(offset);
+		channel.position(offset);
+		position = offset;
+	}
+}
@@ -0,0 +1,144 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+
+/**
+ * <p>The {@link PendingConflicts} records the conflicting files committed
+ * with conflict markers by {@link IterativeFileGenerator#endDeferred()}. 
+ * For each path the base, user and generation object ids are kept so the
+ * file can be merged again when the conflicts are resolved.</p>
+ * 
+ * <p>The record is saved in the repository folder, it's empty once all 
+ * conflicts have been resolved.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class PendingConflicts {
+
+	/** File name in the repository folder. */
+	private final static String FILENAME = "hannah-conflicts";
+	
+	/** Value for a missing version. */
+	private final static String MISSING = "-";
+	
+	private final File file;
+	
+	/** Pending entries in path order. */
+	private final List<ConflictingEntry> entries = new ArrayList<ConflictingEntry>();
+	
+	PendingConflicts(File gitFolder) {
+		this.file = new File(gitFolder, FILENAME);
+	}
+	
+	/**
+	 * <p>Loads the pending conflicts.</p>
+	 */
+	void load() throws IOException {
+		entries.clear();
+		if ( file.exists() == false ) return;
+		
+		final Properties properties = new Properties();
+		final InputStream stream = new FileInputStream(file);
+		try {
+			properties.load(stream);
+		} finally {
+			stream.close();
+		}
+		
+		final List<String> paths = new ArrayList<String>(properties.stringPropertyNames());
+		Collections.sort(paths);
+		for ( final String path : paths ) {
+			final String[] ids = properties.getProperty(path).split(" ");
+			final ConflictingEntry entry = new ConflictingEntry(path);
+			entry.base = parse(ids[0]);
+			entry.user = parse(ids[1]);
+			entry.generation = parse(ids[2]);
+			entries.add(entry);
+		}
+	}
+	
+	private static ObjectId parse(String id) {
+		return MISSING.equals(id) ? null : ObjectId.fromString(id);
+	}
+	
+	private static String name(ObjectId id) {
+		return id == null ? MISSING : id.name();
+	}
+	
+	boolean isEmpty() {
+		return entries.isEmpty();
+	}
+	
+	/**
+	 * @return the pending entries.
+	 */
+	List<ConflictingEntry> getEntries() {
+		return entries;
+	}
+	
+	/**
+	 * <p>Adds a conflicting entry to the record.</p>
+	 */
+	void add(ConflictingEntry entry) {
+		entries.add(entry);
+	}
+	
+	/**
+	 * <p>Removes all entries.</p>
+	 */
+	void clear() {
+		entries.clear();
+	}
+	
+	/**
+	 * <p>Saves the pending conflicts, the file is deleted when there is 
+	 * none.</p>
+	 * @param writer writer for the record file.
+	 */
+	void save(OutputWriter writer) throws IOException {
+		if ( entries.isEmpty() ) {
+			FileUtil.delete(file);
+			return;
+		}
+		
+		final Properties properties = new Properties();
+		for ( final ConflictingEntry entry : entries ) {
+			properties.setProperty(entry.path, name(entry.base) + " " + name(entry.user) + " " + name(entry.generation));
+		}
+		
+		final AtomicOutputStream stream = writer.open(file);
+		try {
+			properties.store(stream, "Hannah pending conflicts");
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+	}
+}
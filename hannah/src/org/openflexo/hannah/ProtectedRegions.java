@@ -0,0 +1,202 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>{@link ProtectedRegions} describes the user code regions inside 
+ * generated files. A region starts with a line containing the begin marker
+ * followed by the region id and ends with the next line containing the end
+ * marker. For instance with begin marker <code>USER CODE BEGIN</code> and 
+ * end marker <code>USER CODE END</code>:
+ * <pre><code>
+ * // USER CODE BEGIN imports
+ * import java.util.List;
+ * // USER CODE END
+ * </code></pre>
+ * </p>
+ * 
+ * <p>When protected regions are set on the {@link IterativeFileGenerator},
+ * the bodies of the user regions are carried over, by region id, to the 
+ * base and generation versions of a conflicting file before merging it. 
+ * Region bodies are then always the user ones and only the lines outside
+ * of the regions are merged. Carrying regions takes a linear time.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class ProtectedRegions {
+
+	/** Line marker for region beginning. */
+	private final byte[] beginMarker;
+	
+	/** Line marker for region ending. */
+	private final byte[] endMarker;
+	
+	/**
+	 * <p>Creates protected regions with given markers.</p>
+	 * @param beginMarker marker found on the first line of a region, it's 
+	 * followed by the region id.
+	 * @param endMarker marker found on the last line of a region.
+	 */
+	public ProtectedRegions(String beginMarker, String endMarker) {
+		this.beginMarker = toBytes(beginMarker);
+		this.endMarker = toBytes(endMarker);
+	}
+	
+	private static byte[] toBytes(String marker) {
+		if ( marker == null || marker.length() == 0 ) {
+			throw new IllegalArgumentException("Region marker can't be empty.");
+		}
+		try {
+			return marker.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * <p>Finds the regions in given contents.</p>
+	 * @return a map of region id to body bounds (start and end offsets in 
+	 * contents).
+	 */
+	Map<String, int[]> parse(byte[] contents) {
+		final Map<String, int[]> regions = new HashMap<String, int[]>();
+		
+		String id = null;
+		int bodyStart = 0;
+		int lineStart = 0;
+		while ( lineStart < contents.length ) {
+			final int lineEnd = lineEnd(contents, lineStart);
+			
+			if ( id == null ) {
+				final int marker = indexOf(contents, lineStart, lineEnd, beginMarker);
+				if ( marker >= 0 ) {
+					id = readId(contents, marker + beginMarker.length, lineEnd);
+					bodyStart = nextLine(contents, lineEnd);
+				}
+			} else if ( indexOf(contents, lineStart, lineEnd, endMarker) >= 0 ) {
+				if ( id.length() > 0 && regions.containsKey(id) == false ) {
+					regions.put(id, new int[] { bodyStart, lineStart });
+				}
+				id = null;
+			}
+			
+			lineStart = nextLine(contents, lineEnd);
+		}
+		return regions;
+	}
+	
+	/**
+	 * <p>Replaces the bodies of target regions with the source ones.</p>
+	 * @param source contents where regions come from.
+	 * @param sourceRegions regions parsed from source.
+	 * @param target contents to modify.
+	 * @return the target contents with source region bodies, or target if
+	 * no region were found in it.
+	 */
+	byte[] carry(byte[] source, Map<String, int[]> sourceRegions, byte[] target) {
+		if ( sourceRegions.isEmpty() ) return target;
+		
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(target.length);
+		boolean carried = false;
+		
+		// start of the target contents not yet copied
+		int copied = 0;
+		int[] region = null;
+		int lineStart = 0;
+		while ( lineStart < target.length ) {
+			final int lineEnd = lineEnd(target, lineStart);
+			
+			if ( region == null ) {
+				final int marker = indexOf(target, lineStart, lineEnd, beginMarker);
+				if ( marker >= 0 ) {
+					region = sourceRegions.get(readId(target, marker + beginMarker.length, lineEnd));
+					if ( region != null ) {
+						// copies until the end of the begin line
+						final int bodyStart = nextLine(target, lineEnd);
+						result.write(target, copied, bodyStart - copied);
+						copied = bodyStart;
+					}
+				}
+			} else if ( indexOf(target, lineStart, lineEnd, endMarker) >= 0 ) {
+				// replaces the body with the source one
+				result.write(source, region[0], region[1] - region[0]);
+				copied = lineStart;
+				region = null;
+				carried = true;
+			}
+			
+			lineStart = nextLine(target, lineEnd);
+		}
+		
+		if ( carried == false ) return target;
+		
+		result.write(target, copied, target.length - copied);
+		return result.toByteArray();
+	}
+	
+	/** Index of line feed ending the line or contents length. */
+	private static int lineEnd(byte[] contents, int lineStart) {
+		int index = lineStart;
+		while ( index < contents.length && contents[index] != '\n' ) {
+			index++;
+		}
+		return index;
+	}
+	
+	private static int nextLine(byte[] contents, int lineEnd) {
+		return Math.min(lineEnd + 1, contents.length);
+	}
+	
+	/** Index of marker in contents range or -1. */
+	private static int indexOf(byte[] contents, int start, int end, byte[] marker) {
+		final int last = end - marker.length;
+		search: for ( int i=start; i<=last; i++ ) {
+			for ( int j=0; j<marker.length; j++ ) {
+				if ( contents[i+j] != marker[j] ) continue search;
+			}
+			return i;
+		}
+		return -1;
+	}
+	
+	/** Reads the id following a begin marker, empty if none. */
+	private static String readId(byte[] contents, int start, int end) {
+		int idStart = start;
+		while ( idStart < end && isWhitespace(contents[idStart]) ) {
+			idStart++;
+		}
+		int idEnd = idStart;
+		while ( idEnd < end && isWhitespace(contents[idEnd]) == false ) {
+			idEnd++;
+		}
+		try {
+			return new String(contents, idStart, idEnd - idStart, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+}
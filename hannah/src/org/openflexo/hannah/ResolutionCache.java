@@ -0,0 +1,204 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.openflexo.hannah.Conflict.Resolution;
+import org.openflexo.hannah.OutputWriter.AtomicOutputStream;
+
+/**
+ * <p>The {@link ResolutionCache} remembers how conflicts were resolved. 
+ * Each conflict is identified by a fingerprint of its path, base text, 
+ * user text and generation text (object ids of both sides for whole-file
+ * conflicts), when the same conflict comes back it's resolved the same 
+ * way. The base text tells apart conflicts with the same texts on both 
+ * sides but coming from different changes.</p>
+ * 
+ * <p>Resolutions are saved in the repository with the cycle they were last
+ * used in, resolutions not used for a given number of cycles are 
+ * evicted.</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+class ResolutionCache {
+
+	/** File name in the repository folder. */
+	private final static String FILENAME = "hannah-resolutions";
+	
+	/** Key for the cycle counter (fingerprints are never empty). */
+	private final static String CYCLE_KEY = "";
+	
+	/** Resolutions by ordinal. */
+	private static final Resolution[] RESOLUTIONS = Resolution.values();
+	
+	private final File file;
+	
+	/** Number of cycles after which an unused resolution is evicted. */
+	private final int maxAge;
+	
+	/** Resolution ordinal and last cycle used, by fingerprint. */
+	private final Map<String, long[]> resolutions = new HashMap<String, long[]>();
+	
+	/** Current cycle. */
+	private long cycle = 0;
+	
+	ResolutionCache(File gitFolder, int maxAge) {
+		this.file = new File(gitFolder, FILENAME);
+		this.maxAge = maxAge;
+	}
+	
+	/**
+	 * <p>Loads remembered resolutions and starts a new cycle.</p>
+	 */
+	void load() throws IOException {
+		resolutions.clear();
+		cycle = 0;
+		if ( file.exists() ) {
+			final Properties properties = new Properties();
+			final InputStream stream = new FileInputStream(file);
+			try {
+				properties.load(stream);
+			} finally {
+				stream.close();
+			}
+			
+			for ( final String key : properties.stringPropertyNames() ) {
+				final String value = properties.getProperty(key);
+				if ( key.equals(CYCLE_KEY) ) {
+					cycle = Long.parseLong(value);
+				} else {
+					final int separator = value.indexOf(' ');
+					final Resolution resolution = Resolution.valueOf(value.substring(0, separator));
+					final long used = Long.parseLong(value.substring(separator + 1));
+					resolutions.put(key, new long[] { resolution.ordinal(), used });
+				}
+			}
+		}
+		cycle += 1;
+	}
+	
+	/**
+	 * <p>Computes the fingerprint of each conflict of given file.</p>
+	 */
+	String[] fingerprints(ConflictingFile conflictingFile) throws IOException {
+		final MessageDigest digest = Constants.newMessageDigest();
+		final OutputStream stream = new OutputStream() {
+			@Override
+			public void write(int b) {
+				digest.update((byte) b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+				digest.update(b, off, len);
+			}
+		};
+		
+		final byte[] path = Constants.encode(conflictingFile.getPath());
+		final String[] fingerprints = new String[conflictingFile.getConflicts().size()];
+		for ( int i=0; i<fingerprints.length; i++ ) {
+			digest.update(path);
+			digest.update((byte) 0);
+			if ( conflictingFile.isWholeFile() ) {
+				stream.write(Constants.encode(name(conflictingFile.getObjectId(Resolution.USER))));
+				stream.write(0);
+				stream.write(Constants.encode(name(conflictingFile.getObjectId(Resolution.GENERATION))));
+			} else {
+				conflictingFile.writeLines(ConflictingFile.BASE_SEQUENCE, conflictingFile.getBaseBegin(i), conflictingFile.getBaseEnd(i), stream);
+				stream.write(0);
+				conflictingFile.writeLines(ConflictingFile.USER_SEQUENCE, conflictingFile.getUserBegin(i), conflictingFile.getUserEnd(i), stream);
+				stream.write(0);
+				conflictingFile.writeLines(ConflictingFile.GENERATION_SEQUENCE, conflictingFile.getGenerationBegin(i), conflictingFile.getGenerationEnd(i), stream);
+			}
+			fingerprints[i] = ObjectId.fromRaw(digest.digest()).name();
+		}
+		return fingerprints;
+	}
+	
+	private static String name(ObjectId id) {
+		return id == null ? "" : id.name();
+	}
+	
+	/**
+	 * <p>Applies remembered resolutions to given file.</p>
+	 * @param fingerprints fingerprints of the file conflicts.
+	 * @return true if all conflicts of the file were resolved.
+	 */
+	boolean apply(ConflictingFile conflictingFile, String[] fingerprints) {
+		boolean all = true;
+		for ( int i=0; i<fingerprints.length; i++ ) {
+			final long[] remembered = resolutions.get(fingerprints[i]);
+			if ( remembered != null ) {
+				conflictingFile.setResolution(i, RESOLUTIONS[(int) remembered[0]]);
+				remembered[1] = cycle;
+			} else {
+				all = false;
+			}
+		}
+		return all;
+	}
+	
+	/**
+	 * <p>Remembers resolutions of given file.</p>
+	 * @param fingerprints fingerprints of the file conflicts.
+	 */
+	void record(ConflictingFile conflictingFile, String[] fingerprints) {
+		for ( int i=0; i<fingerprints.length; i++ ) {
+			resolutions.put(fingerprints[i], new long[] { conflictingFile.getResolution(i).ordinal(), cycle });
+		}
+	}
+	
+	/**
+	 * <p>Evicts resolutions not used for too long and saves the others.</p>
+	 * @param writer writer for the resolutions file.
+	 */
+	void save(OutputWriter writer) throws IOException {
+		final Properties properties = new Properties();
+		final Iterator<Map.Entry<String, long[]>> iterator = resolutions.entrySet().iterator();
+		while ( iterator.hasNext() ) {
+			final Map.Entry<String, long[]> entry = iterator.next();
+			final long[] remembered = entry.getValue();
+			if ( cycle - remembered[1] >= maxAge ) {
+				iterator.remove();
+			} else {
+				properties.setProperty(entry.getKey(), RESOLUTIONS[(int) remembered[0]] + " " + remembered[1]);
+			}
+		}
+		properties.setProperty(CYCLE_KEY, Long.toString(cycle));
+		
+		final AtomicOutputStream stream = writer.open(file);
+		try {
+			properties.store(stream, "Hannah conflict resolutions");
+			stream.commit();
+		} finally {
+			stream.close();
+		}
+	}
+}
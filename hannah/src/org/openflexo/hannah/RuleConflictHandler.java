@@ -0,0 +1,330 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openflexo.hannah.Conflict.Resolution;
+
+/**
+ * <p>A {@link RuleConflictHandler} resolves conflicts using rules on file
+ * paths. A rule selects files with a glob or a regular expression and gives
+ * the {@link Resolution} to apply. A rule can also have a 
+ * {@link HunkPredicate} to only apply to some conflicts of the files.</p>
+ * 
+ * <p>For each conflict, the first rule which matches the file path (and the
+ * conflict if it has a predicate) gives the resolution. If no rule applies,
+ * the default resolution is used. Path patterns are compiled once in one
+ * expression, except patterns with back references or named groups which
+ * are matched alone. When a file is decided by a rule without predicate, its
+ * conflicts texts are never built.</p>
+ * 
+ * <p>It will look like this:
+ * <pre><code>
+ * RuleConflictHandler handler = new RuleConflictHandler(Resolution.USER);
+ * handler.addGlobRule("**&#47;*.properties", Resolution.GENERATION);
+ * handler.addRegexRule("src/.*\\.java", RuleConflictHandler.generationMatches("@Generated"), Resolution.GENERATION);
+ * generator.end(handler);
+ * </code></pre>
+ * </p>
+ * 
+ * <p>Globs use '/' as separator: '*' matches any characters but '/', '?' 
+ * matches one character but '/', '**' matches any characters and '**&#47;'
+ * matches any folders (or none).</p>
+ * 
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public class RuleConflictHandler implements ConflictHandler {
+
+	/**
+	 * <p>Tells if a rule applies to a conflict.</p>
+	 */
+	public interface HunkPredicate {
+		
+		/**
+		 * @param conflict the conflict to test.
+		 * @return true if the rule applies to it.
+		 */
+		boolean matches(Conflict conflict);
+	}
+	
+	/**
+	 * <p>Creates a predicate matching conflicts which user text contains
+	 * given regular expression.</p>
+	 */
+	public static HunkPredicate userMatches(String regex) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new HunkPredicate() {
+			@Override
+			public boolean matches(Conflict conflict) {
+				return pattern.matcher(conflict.getUser()).find();
+			}
+		};
+	}
+	
+	/**
+	 * <p>Creates a predicate matching conflicts which generation text 
+	 * contains given regular expression.</p>
+	 */
+	public static HunkPredicate generationMatches(String regex) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new HunkPredicate() {
+			@Override
+			public boolean matches(Conflict conflict) {
+				return pattern.matcher(conflict.getGeneration()).find();
+			}
+		};
+	}
+	
+	/** Resolution used when no rule applies. */
+	private final Resolution defaultResolution;
+	
+	private final List<Rule> rules = new ArrayList<Rule>();
+	
+	/** All path patterns in one expression, null until compiled. */
+	private Pattern compiled;
+	
+	/** Group of each rule in compiled expression. */
+	private int[] groups;
+	
+	public RuleConflictHandler(Resolution defaultResolution) {
+		this.defaultResolution = defaultResolution;
+	}
+	
+	/**
+	 * <p>Adds a rule for files matching given glob.</p>
+	 */
+	public void addGlobRule(String glob, Resolution resolution) {
+		addRegexRule(globToRegex(glob), null, resolution);
+	}
+	
+	/**
+	 * <p>Adds a rule for conflicts matching predicate in files matching 
+	 * given glob.</p>
+	 */
+	public void addGlobRule(String glob, HunkPredicate predicate, Resolution resolution) {
+		addRegexRule(globToRegex(glob), predicate, resolution);
+	}
+	
+	/**
+	 * <p>Adds a rule for files which path matches given regular 
+	 * expression.</p>
+	 */
+	public void addRegexRule(String regex, Resolution resolution) {
+		addRegexRule(regex, null, resolution);
+	}
+	
+	/**
+	 * <p>Adds a rule for conflicts matching predicate in files which path 
+	 * matches given regular expression.</p>
+	 * @throws java.util.regex.PatternSyntaxException if the expression is invalid.
+	 */
+	public void addRegexRule(String regex, HunkPredicate predicate, Resolution resolution) {
+		rules.add(new Rule(Pattern.compile(regex), predicate, resolution));
+		compiled = null;
+	}
+	
+	/**
+	 * @return a {@link StreamingConflictHandler} using the same rules.
+	 */
+	public StreamingConflictHandler streaming() {
+		return new StreamingConflictHandler() {
+			@Override
+			public void conflictingFile(ConflictingFile conflictingFile) {
+				resolve(conflictingFile);
+			}
+		};
+	}
+	
+	@Override
+	public void conflicts(List<ConflictingFile> conflictingFiles) {
+		for ( final ConflictingFile file : conflictingFiles ) {
+			resolve(file);
+		}
+	}
+	
+	/**
+	 * <p>Resolves all conflicts of given file using the rules.</p>
+	 */
+	public void resolve(ConflictingFile conflictingFile) {
+		final int first = firstMatchingRule(conflictingFile.getPath());
+		if ( first < 0 ) {
+			conflictingFile.setResolution(defaultResolution);
+			return;
+		}
+		
+		final Rule firstRule = rules.get(first);
+		if ( firstRule.predicate == null ) {
+			// decided by path
+			conflictingFile.setResolution(firstRule.resolution);
+			return;
+		}
+		
+		for ( final Conflict conflict : conflictingFile.getConflicts() ) {
+			conflict.setResolution(resolve(conflictingFile.getPath(), first, conflict));
+		}
+	}
+	
+	/**
+	 * <p>Searches the first rule which applies to the conflict starting at
+	 * given rule.</p>
+	 */
+	private Resolution resolve(String path, int first, Conflict conflict) {
+		for ( int i=first; i<rules.size(); i++ ) {
+			final Rule rule = rules.get(i);
+			if ( i > first && rule.pattern.matcher(path).matches() == false ) continue;
+			if ( rule.predicate == null || rule.predicate.matches(conflict) ) {
+				return rule.resolution;
+			}
+		}
+		return defaultResolution;
+	}
+	
+	/**
+	 * <p>Searches the first rule which pattern matches given path.</p>
+	 * @return the rule index or -1.
+	 */
+	private int firstMatchingRule(String path) {
+		if ( rules.isEmpty() ) return -1;
+		if ( compiled == null ) compile();
+		
+		// the first alternative that matches is the one captured
+		int first = rules.size();
+		final Matcher matcher = compiled.matcher(path);
+		if ( matcher.matches() ) {
+			for ( int i=0; i<groups.length; i++ ) {
+				if ( groups[i] > 0 && matcher.start(groups[i]) >= 0 ) {
+					first = i;
+					break;
+				}
+			}
+		}
+		
+		// rules kept out of the alternation are matched one by one
+		for ( int i=0; i<first; i++ ) {
+			if ( groups[i] == 0 && rules.get(i).pattern.matcher(path).matches() ) return i;
+		}
+		return first < rules.size() ? first : -1;
+	}
+	
+	/**
+	 * <p>Compiles patterns in one alternation, each one in its own group.
+	 * Patterns with back references or named groups would be broken by the
+	 * alternation (groups are renumbered, names may clash), their group is
+	 * 0 and they're matched alone.</p>
+	 */
+	private void compile() {
+		final StringBuilder regex = new StringBuilder();
+		groups = new int[rules.size()];
+		int group = 1;
+		for ( int i=0; i<rules.size(); i++ ) {
+			final Pattern pattern = rules.get(i).pattern;
+			if ( isCombinable(pattern.pattern()) == false ) continue;
+			
+			if ( regex.length() > 0 ) regex.append('|');
+			regex.append('(').append(pattern.pattern()).append(')');
+			groups[i] = group;
+			group += 1 + pattern.matcher("").groupCount();
+		}
+		// without combinable pattern, the alternation never matches
+		compiled = Pattern.compile(regex.length() > 0 ? regex.toString() : "(?!)");
+	}
+	
+	/**
+	 * <p>Checks that a regular expression has neither back reference nor
+	 * named group.</p>
+	 */
+	static boolean isCombinable(String regex) {
+		final int length = regex.length();
+		for ( int i=0; i<length; i++ ) {
+			final char c = regex.charAt(i);
+			if ( c == '\\' && i+1 < length ) {
+				final char next = regex.charAt(i+1);
+				if ( next == 'Q' ) {
+					// quoted until \E
+					final int end = regex.indexOf("\\E", i+2);
+					if ( end < 0 ) return true;
+					i = end + 1;
+					continue;
+				}
+				if ( ( next >= '1' && next <= '9' ) || next == 'k' ) return false;
+				i += 1;
+			} else if ( c == '(' && regex.startsWith("(?<", i) && i+3 < length ) {
+				final char next = regex.charAt(i+3);
+				if ( next != '=' && next != '!' ) return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Converts a glob to a regular expression.</p>
+	 */
+	static String globToRegex(String glob) {
+		final StringBuilder regex = new StringBuilder();
+		final int length = glob.length();
+		for ( int i=0; i<length; i++ ) {
+			final char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				if ( i+1 < length && glob.charAt(i+1) == '*' ) {
+					if ( i+2 < length && glob.charAt(i+2) == '/' ) {
+						regex.append("(?:.*/)?");
+						i += 2;
+					} else {
+						regex.append(".*");
+						i += 1;
+					}
+				} else {
+					regex.append("[^/]*");
+				}
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			default:
+				if ( Character.isLetterOrDigit(c) || c == '/' ) {
+					regex.append(c);
+				} else {
+					regex.append('\\').append(c);
+				}
+				break;
+			}
+		}
+		return regex.toString();
+	}
+	
+	private static class Rule {
+		
+		final Pattern pattern;
+		
+		/** Conflict predicate, null if the rule applies to whole files. */
+		final HunkPredicate predicate;
+		
+		final Resolution resolution;
+		
+		Rule(Pattern pattern, HunkPredicate predicate, Resolution resolution) {
+			this.pattern = pattern;
+			this.predicate = predicate;
+			this.resolution = resolution;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/* *********************************************************************
+ *  This file is part of Hannah.
+ *
+ *  Hannah is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Hannah is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with Hannah.  If not, see <http://www.gnu.org/licenses/>.
+ * ******************************************************************* */
+package org.openflexo.hannah;
+
+import org.openflexo.hannah.Conflict.Resolution;
+
+/**
+ * <p>A {@link StreamingConflictHandler} is a callback called by
+ * {@link IterativeFileGenerator#endStreaming(StreamingConflictHandler)} after a
+ * generation cycle to handle {@link ConflictingFile}s one at a time. Unlike
+ * the {@link ConflictHandler}, each file is merged, given to the callback,
+ * written back and released before the next one is merged. The memory used
+ * to resolve conflicts is then bounded by the largest conflicting file
+ * instead of the whole conflict set.</p>
+ *
+ * <p>Since the file is written as soon as the callback returns, the
+ * {@link ConflictingFile} must not be kept for later resolution. If no
+ * resolution is set, all conflicts will be resolved choosing user side.</p>
+ *
+ * @author Jean-Charles Roger (jeancharles.roger@gmail.com)
+ *
+ */
+public interface StreamingConflictHandler {
+
+	/**
+	 * <p>Allows to handle the conflicts of one file.</p>
+	 * @param conflictingFile the {@link ConflictingFile} to handle (never null).
+	 */
+	void conflictingFile(ConflictingFile conflictingFile);
+
+	/**
+	 * {@link StreamingConflictHandler} that resolves conflicts using USER version.
+	 */
+	public final static StreamingConflictHandler user = new StreamingConflictHandler() {
+		@Override
+		public void conflictingFile(ConflictingFile conflictingFile) {
+			conflictingFile.setResolution(Resolution.USER);
+		}
+	};
+
+	/**
+	 * {@link StreamingConflictHandler} that resolves conflicts using GENERATION version.
+	 */
+	public final static StreamingConflictHandler generation = new StreamingConflictHandler() {
+		@Override
+		public void conflictingFile(ConflictingFile conflictingFile) {
+			conflictingFile.setResolution(Resolution.GENERATION);
+		}
+	};
+}